@@ -0,0 +1,404 @@
+package vida.phd.tfd;
+
+import vida.phd.tfd.entity.BlockCounts;
+import vida.phd.tfd.entity.Family;
+import vida.phd.tfd.entity.Malware;
+import vida.phd.tfd.index.BlockDictionary;
+import vida.phd.tfd.io.BlockReader;
+import vida.phd.tfd.io.Loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Classifies many malware files at once on a thread pool. The whole batch is scored against the version of the model
+ * which is current when it starts, even if the next version is published meanwhile.
+ * <br/>The files share most of their BasicBlocks, so the batch is classified in three phases: all files are read into
+ * one dictionary of the batch, the best family of each distinct BasicBlock of the batch is looked up once in the model, 
+ * and then each file is scored by reading the best families of its BasicBlocks by their ids in the batch.
+ * <br/>Each thread adds the votes of its files to its own reusable scores by family id. Each file gets its own 
+ * Result, so nothing but the dictionary of the batch is shared between the files.
+ * <br/>Files from {@link TFD#STREAMING_SIZE} on are scored while they are read by a {@link StreamingScorer} of the
+ * thread instead, so they are never built as malware.
+ * <br/>With early exit, the scoring of a file stops as soon as the remaining BasicBlocks can not change its best family.
+ * @author Vida
+ */
+public class BatchClassifier {
+
+  /**
+   * Model the files are scored against
+   */
+  private final TFD tfd;
+
+  /**
+   * Count of threads which classify the files
+   */
+  private final int threads;
+
+  /**
+   * True if the scoring of a file stops as soon as the remaining BasicBlocks can not change the result
+   */
+  private final boolean earlyExit;
+
+  /**
+   * Version of the model the last batch was scored against
+   */
+  private ModelVersion model;
+
+  /**
+   * Count of the distinct BasicBlocks of the last batch, which are looked up in the model
+   */
+  private int countOfLookups;
+
+  /**
+   * Count of all BasicBlocks of the last batch
+   */
+  private long countOfBasicBlocks;
+
+  /**
+   * Constructor which takes the model and the count of threads
+   * @param tfd
+   * @param threads
+   */
+  public BatchClassifier(TFD tfd, int threads) {
+    this(tfd, threads, false);
+  }
+
+  /**
+   * Constructor which takes the model, the count of threads and whether the scoring may exit early
+   * @param tfd
+   * @param threads
+   * @param earlyExit
+   */
+  public BatchClassifier(TFD tfd, int threads, boolean earlyExit) {
+    this.tfd = tfd;
+    this.threads = threads;
+    this.earlyExit = earlyExit;
+  }
+
+  /**
+   * Classifies the given files. The measures which are needed by the ScoreType must be calculated before.
+   * @param files
+   * @param type
+   * @return results in the order of the files
+   * @throws IOException if the classification of a file failed or the batch was interrupted
+   */
+  public List<Result> classify(final File[] files, final TFD.ScoreType type) throws IOException {
+    final ModelVersion model = tfd.getModel();
+    final BlockDictionary dictionary = new BlockDictionary();
+    this.model = model;
+    final ThreadLocal<BlockReader> readers = new ThreadLocal<BlockReader>() {
+      @Override
+      protected BlockReader initialValue() {
+        return new BlockReader(dictionary);
+      }
+    };
+
+    final ThreadLocal<StreamingScorer> scorers = new ThreadLocal<StreamingScorer>() {
+      @Override
+      protected StreamingScorer initialValue() {
+        return new StreamingScorer(model);
+      }
+    };
+
+    final Malware[] malwares = new Malware[files.length];
+    final int[][] streamed = new int[files.length][];
+    final int[] streamedBlocks = new int[files.length];
+    final long[] durations = new long[files.length];
+    final List<Result> results = new ArrayList<>(files.length);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    try {
+      List<Callable<Void>> reads = new ArrayList<>(files.length);
+      for (int i = 0; i < files.length; i++) {
+        final int f = i;
+        reads.add(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            final long startTime = System.nanoTime();
+
+            try {
+              if (files[f].length() >= TFD.STREAMING_SIZE) {
+                StreamingScorer scorer = scorers.get();
+                int[] scores = scorer.score(files[f], type);
+                streamed[f] = Arrays.copyOf(scores, scores.length);
+                streamedBlocks[f] = scorer.getCountOfBasicBlocks();
+              } else {
+                Family candidateFamily = new Family(TFD.CANDIDATE_FAMILY_NAME, dictionary);
+                malwares[f] = Loader.readMalware(files[f], candidateFamily, readers.get());
+                candidateFamily.addMalware(malwares[f]);
+              }
+            } catch (IOException ex) {
+              Logger.getLogger(BatchClassifier.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+            }
+
+            durations[f] = System.nanoTime() - startTime;
+            return null;
+          }
+        });
+      }
+      invokeAll(executor, reads);
+
+      countOfLookups = dictionary.size();
+      countOfBasicBlocks = 0;
+      for (Malware malware : malwares) {
+        if (malware != null) {
+          countOfBasicBlocks += malware.getBasicBlocks().total();
+        }
+      }
+
+      final int[] bestFamilies = new int[countOfLookups];
+      List<Callable<Void>> lookups = new ArrayList<>();
+      int grain = Math.max(1, (countOfLookups + threads * 4 - 1) / (threads * 4));
+      for (int from = 0; from < countOfLookups; from += grain) {
+        final int rangeFrom = from;
+        final int rangeTo = Math.min(countOfLookups, from + grain);
+        lookups.add(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int id = rangeFrom; id < rangeTo; id++) {
+              bestFamilies[id] = model.bestFamilyId(dictionary.getKey(id), type);
+            }
+            return null;
+          }
+        });
+      }
+      invokeAll(executor, lookups);
+
+      final int countOfFamilies = model.getIndex().countOfFamilies();
+      final ThreadLocal<int[]> votes = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+          return new int[countOfFamilies];
+        }
+      };
+      final ThreadLocal<VoteLeaders> leaders = new ThreadLocal<VoteLeaders>() {
+        @Override
+        protected VoteLeaders initialValue() {
+          return new VoteLeaders();
+        }
+      };
+
+      final Result[] scored = new Result[files.length];
+      List<Callable<Void>> scorings = new ArrayList<>(files.length);
+      for (int i = 0; i < files.length; i++) {
+        final int f = i;
+        scorings.add(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            final long startTime = System.nanoTime();
+            int[] scores = votes.get();
+            Arrays.fill(scores, 0);
+
+            int countOfBlocks = 0;
+            int countOfScoredBlocks = 0;
+
+            if (streamed[f] != null) {
+              System.arraycopy(streamed[f], 0, scores, 0, Math.min(scores.length, streamed[f].length));
+              countOfBlocks = streamedBlocks[f];
+              countOfScoredBlocks = countOfBlocks;
+            } else if (malwares[f] != null) {
+              BlockCounts blocks = malwares[f].getBasicBlocks();
+              countOfBlocks = blocks.size();
+              countOfScoredBlocks = ModelVersion.score(bestFamilies, blocks.getIds(), countOfBlocks, scores, earlyExit ? leaders.get() : null);
+            }
+
+            Family family = model.findResultFamily(scores);
+            scored[f] = new Result(files[f], malwares[f], Arrays.copyOf(scores, scores.length), family, durations[f] + System.nanoTime() - startTime,
+                    countOfScoredBlocks, countOfBlocks);
+            return null;
+          }
+        });
+      }
+      invokeAll(executor, scorings);
+
+      results.addAll(Arrays.asList(scored));
+    } finally {
+      executor.shutdown();
+    }
+
+    return results;
+  }
+
+  /**
+   * 
+   * @return version of the model the last batch was scored against
+   */
+  public ModelVersion getModel() {
+    return model;
+  }
+
+  /**
+   * 
+   * @return count of the distinct BasicBlocks of the last batch, which are looked up in the model
+   */
+  public int getCountOfLookups() {
+    return countOfLookups;
+  }
+
+  /**
+   * 
+   * @return count of all BasicBlocks of the last batch
+   */
+  public long getCountOfBasicBlocks() {
+    return countOfBasicBlocks;
+  }
+
+  /**
+   * Runs all the given tasks and waits for them
+   * @param executor
+   * @param tasks
+   * @throws IOException if a task failed or the waiting was interrupted, so no partial batch is returned
+   */
+  private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) throws IOException {
+    try {
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Classification of the batch was interrupted");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new IOException("Classification of the batch failed: " + ex.getCause(), ex.getCause());
+    }
+  }
+
+  /**
+   * Result of the classification of one file
+   */
+  public static class Result {
+
+    /**
+     * Classified file
+     */
+    private final File file;
+
+    /**
+     * Malware of the file; null if it could not be read or it was scored while streaming
+     */
+    private final Malware malware;
+
+    /**
+     * Scores by family id; partial if the scoring exited early
+     */
+    private final int[] scores;
+
+    /**
+     * Detected family; null if the malware can not be classified
+     */
+    private final Family family;
+
+    /**
+     * Duration of the classification in nanoseconds
+     */
+    private final long duration;
+
+    /**
+     * Count of the scored BasicBlocks; less than countOfBlocks if the scoring exited early
+     */
+    private final int countOfScoredBlocks;
+
+    /**
+     * Count of the BasicBlocks of the malware
+     */
+    private final int countOfBlocks;
+
+    /**
+     * Constructor which takes all fields
+     * @param file
+     * @param malware
+     * @param scores
+     * @param family
+     * @param duration
+     * @param countOfScoredBlocks
+     * @param countOfBlocks
+     */
+    public Result(File file, Malware malware, int[] scores, Family family, long duration, int countOfScoredBlocks, int countOfBlocks) {
+      this.file = file;
+      this.malware = malware;
+      this.scores = scores;
+      this.family = family;
+      this.duration = duration;
+      this.countOfScoredBlocks = countOfScoredBlocks;
+      this.countOfBlocks = countOfBlocks;
+    }
+
+    /**
+     *
+     * @return file
+     */
+    public File getFile() {
+      return file;
+    }
+
+    /**
+     *
+     * @return malware or null if the file could not be read or it was scored while streaming
+     */
+    public Malware getMalware() {
+      return malware;
+    }
+
+    /**
+     *
+     * @return scores by family id
+     */
+    public int[] getScores() {
+      return scores;
+    }
+
+    /**
+     *
+     * @return detected family or null if the malware can not be classified
+     */
+    public Family getFamily() {
+      return family;
+    }
+
+    /**
+     *
+     * @return duration of the classification in nanoseconds
+     */
+    public long getDuration() {
+      return duration;
+    }
+
+    /**
+     *
+     * @return count of the scored BasicBlocks; less than the count of the BasicBlocks if the scoring exited early
+     */
+    public int getCountOfScoredBlocks() {
+      return countOfScoredBlocks;
+    }
+
+    /**
+     *
+     * @return count of the BasicBlocks of the malware
+     */
+    public int getCountOfBlocks() {
+      return countOfBlocks;
+    }
+
+    /**
+     *
+     * @return true if all BasicBlocks were scored
+     */
+    public boolean isExact() {
+      return countOfScoredBlocks == countOfBlocks;
+    }
+  }
+}
@@ -2,13 +2,23 @@ package vida.phd.tfd;
 
 import vida.phd.tfd.commandline.CommandLine;
 import vida.phd.tfd.entity.BasicBlock;
+import vida.phd.tfd.entity.BlockCounts;
+import vida.phd.tfd.entity.BlockKey;
 import vida.phd.tfd.entity.Family;
 import vida.phd.tfd.entity.Malware;
+import vida.phd.tfd.index.Shard;
+import vida.phd.tfd.server.ClassificationServer;
+import vida.phd.tfd.shard.ShardCoordinator;
+import vida.phd.tfd.shard.ShardWorker;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.URISyntaxException;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
@@ -48,19 +58,92 @@ public class Main {
    */
   private File initFile;
 
+  /**
+   * Count of threads for loading and calculating the families; 0 means one per core.
+   * It may be set by the --threads argument or the threads property of the init file.
+   */
+  private int threads;
+
+  /**
+   * Port of the classification server; 0 means no server. It may be set by the --serve argument.
+   */
+  private int servePort;
+
+  /**
+   * Address of the classification server; null means the loopback address. It may be set by the --bind argument.
+   */
+  private String serveAddress;
+
+  /**
+   * ScoreType of the pipe mode; null means the command line. It may be set by the --pipe argument.
+   */
+  private TFD.ScoreType pipeType;
+
+  /**
+   * True if the scoring of the pipe mode stops as soon as the family of a sample is decided.
+   * It may be set by the --early argument.
+   */
+  private boolean pipeEarlyExit;
+
+  /**
+   * Output of the verdicts of the pipe mode; everything else is printed to the standard error then. It is the standard
+   * output itself rather than System.out, which would hide a closed pipe.
+   */
+  private OutputStream pipeOutput;
+
+  /**
+   * Families directory or snapshot file which is loaded at start, after the init file. It may be set by the --load argument.
+   */
+  private String loadPath;
+
+  /**
+   * Shard of the model which this process serves to a coordinator; null for the whole model. It may be set by the --shard argument.
+   */
+  private Shard shard;
+
+  /**
+   * Port of the shard; 0 picks a free port. It may be set by the --port argument.
+   */
+  private int shardPort;
+
+  /**
+   * Count of the shards which this process starts as child processes and coordinates; 0 means no shards.
+   * It may be set by the --shards argument.
+   */
+  private int shards;
+
+  /**
+   * Classification server which serves the model over HTTP next to the command line; null if it is not started
+   */
+  private ClassificationServer server;
+
   /**
    * Runs the program
    */
   private void run() {
     showVersion();
     running = true;
-    tfd = new TFD();
+
+    boolean initFound = checkInitFile();
+    if (initFound && threads == 0) {
+      threads = checkInitThreads();
+    }
+
+    tfd = newTFD();
     tfd.showStatus(false);
 
-    if (checkInitFile()) {
+    if (initFound) {
       System.out.println("Init file found!");
+      String initSnapshotPath = checkInitSnapshot();
       String initLoadPath = checkInitLoad();
-      if (initLoadPath != null) {
+      if (initSnapshotPath != null && new File(initSnapshotPath).isFile()) {
+        System.out.println("Init load from snapshot: " + initSnapshotPath);
+        try {
+          loadSnapshot(initSnapshotPath);
+        } catch (IOException ex) {
+          Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+        }
+      } else if (initLoadPath != null) {
         System.out.println("Init load from: " + initLoadPath);
         try {
           loadFamiles(initLoadPath);
@@ -70,6 +153,32 @@ public class Main {
       }
     }
 
+    if (loadPath != null) {
+      try {
+        if (new File(loadPath).isFile()) {
+          loadSnapshot(loadPath);
+        } else {
+          loadFamiles(loadPath);
+        }
+      } catch (IOException ex) {
+        Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+      }
+    }
+
+    if (shard != null) {
+      serveShard();
+      return;
+    }
+
+    if (pipeType != null) {
+      pipe();
+      return;
+    }
+
+    if (servePort > 0) {
+      startServer();
+    }
+
     getter = new CommandLine(System.in, System.out, ";", "TFD> ", "-> ");
     while (running) {
       try {
@@ -79,6 +188,10 @@ public class Main {
             command = command.trim();
             if (command.equalsIgnoreCase("exit")) {
               running = false;
+              if (server != null) {
+                server.stop();
+              }
+              tfd.close();
               System.out.print("Bye\n");
             } else if (command.equalsIgnoreCase("time") || command.equalsIgnoreCase("date") || command.equalsIgnoreCase("now")) {
               timeCommand(command);
@@ -92,8 +205,12 @@ public class Main {
               queryCommand(command);
             } else if (command.startsWith("family")) {
               familyCommand(command);
+            } else if (command.startsWith("reload")) {
+              reloadCommand(command);
             } else if (command.startsWith("load")) {
               loadCommand(command);
+            } else if (command.startsWith("save")) {
+              saveCommand(command);
             } else if (command.startsWith("classify")) {
               addCommand(command);
             } else {
@@ -109,6 +226,82 @@ public class Main {
     }
   }
 
+  /**
+   * Pipe mode. Classifies the samples of the standard input and writes their verdicts as JSON lines, then exits
+   */
+  private void pipe() {
+    final long startTime = System.nanoTime();
+    try {
+      int count = new PipeClassifier(tfd, tfd.getParallelism(), pipeEarlyExit).classify(System.in, pipeOutput, pipeType);
+      System.out.println(count + " samples classified in " + (System.nanoTime() - startTime) / 1000000 + " ms.");
+    } catch (IOException ex) {
+      Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+    } finally {
+      tfd.close();
+    }
+  }
+
+  /**
+   * Shard mode. Serves the shard of the model to a coordinator until the standard input ends, e.g. when the 
+   * coordinator which started this process closes it
+   */
+  private void serveShard() {
+    ShardWorker worker = null;
+    try {
+      worker = new ShardWorker(tfd, shardPort);
+      worker.start();
+      System.out.println(ShardCoordinator.READY + worker.getPort());
+
+      while (System.in.read() >= 0) {
+        // the shard is served until the standard input ends
+      }
+    } catch (IOException ex) {
+      Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+    } finally {
+      if (worker != null) {
+        worker.stop();
+      }
+      tfd.close();
+    }
+  }
+
+  /**
+   * Coordinator mode. Starts the shards as child processes, classifies the malware files whose paths are read from
+   * the standard input against all shards and writes their verdicts as JSON lines, then ends the shards
+   */
+  private void coordinate() {
+    showVersion();
+    if (loadPath == null || !new File(loadPath).isDirectory()) {
+      System.out.println("Please give the families directory of the shards by --load.");
+      return;
+    }
+
+    final long startTime = System.nanoTime();
+    try (ShardCoordinator coordinator = ShardCoordinator.startLocal(shards, new File(loadPath), threads)) {
+      System.out.println(shards + " shards started in " + (System.nanoTime() - startTime) / 1000000 + " ms.");
+      final long classifyTime = System.nanoTime();
+      int count = coordinator.pipe(System.in, pipeOutput, pipeType == null ? TFD.ScoreType.TFD : pipeType);
+      System.out.println(count + " samples classified in " + (System.nanoTime() - classifyTime) / 1000000 + " ms.");
+    } catch (IOException ex) {
+      Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+    }
+  }
+
+  /**
+   * Starts the classification server on the configured address and port. It has one thread per thread of the model 
+   * and admits 16 requests per thread at most at once.
+   */
+  private void startServer() {
+    int serverThreads = tfd.getParallelism();
+    try {
+      InetAddress address = serveAddress == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(serveAddress);
+      server = new ClassificationServer(tfd, address, servePort, serverThreads, serverThreads * 16);
+      server.start();
+    } catch (IOException ex) {
+      Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+    }
+  }
+
   /**
    * Classify command
    * @param command 
@@ -118,17 +311,26 @@ public class Main {
       showAddHelp();
     } else {
       String[] parts = splitCommand(command);
-      if (parts.length == 3 || (parts.length == 4 && parts[3].equals("scoring"))) {
-        boolean showInfo = parts.length == 4 && parts[3].equals("scoring");
+      boolean showInfo = false;
+      boolean earlyExit = false;
+      boolean valid = parts.length >= 3;
+      for (int i = 3; i < parts.length; i++) {
+        if (parts[i].equals("scoring")) {
+          showInfo = true;
+        } else if (parts[i].equals("early")) {
+          earlyExit = true;
+        } else {
+          valid = false;
+        }
+      }
+
+      if (valid) {
+        tfd.setEarlyExit(earlyExit);
         try {
           String typeStr = parts[1].trim().toLowerCase();
           String malwareFilePath = parts[2];
           TFD.ScoreType type = typeStr.equals("fc") ? TFD.ScoreType.FAM_CLASSIFIER : (typeStr.equals("tfd") ? TFD.ScoreType.TFD : null);
           final int count = tfd.add(malwareFilePath, type, showInfo);
-
-          final String home = tfd.getFamiliesHome().getAbsolutePath();
-          tfd = new TFD();
-          loadFamiles(home);
           System.out.println(count + " new malware files added");
         } catch (Exception ex) {
           System.out.println("Error: " + ex.getMessage());
@@ -143,7 +345,8 @@ public class Main {
    */
   private void showAddHelp() {
     System.out.println("classify command:");
-    System.out.println("classify tfd/fc path [scoring]");
+    System.out.println("classify tfd/fc path [scoring] [early]");
+    System.out.println("early: stops scoring a malware as soon as its family is decided; the scores are partial then");
   }
 
   /**
@@ -172,6 +375,25 @@ public class Main {
     System.out.println("exit");
     System.out.println("help");
     System.out.println("load");
+    System.out.println("reload");
+    System.out.println("save");
+  }
+
+  /**
+   * Reload command. Rebuilds the model from the families home in the background, or waits for the rebuild
+   * @param command 
+   */
+  private void reloadCommand(String command) {
+    String[] parts = splitCommand(command);
+    if (parts.length == 1) {
+      tfd.rebuild();
+    } else if (parts.length == 2 && parts[1].equals("wait")) {
+      tfd.awaitRebuild();
+    } else {
+      System.out.println("reload command:");
+      System.out.println("reload: rebuilds the model from the families home in the background; queries and classifications use the current model until it is done");
+      System.out.println("reload wait: waits until the rebuild is done");
+    }
   }
 
   /**
@@ -246,15 +468,11 @@ public class Main {
 
                 for (Family commonFamily : commonFamilies) {
                   if (!familyName.equals(commonFamily.getName())) {
-                    Iterator<Map.Entry<String, BasicBlock>> it = commonFamily.getBasicBlocks().entrySet().iterator();
+                    BasicBlock commonBB = commonFamily.findById(bb.getId());
 
-                    while (it.hasNext()) {
-                      BasicBlock commonBB = it.next().getValue();
-
-                      if (commonBB.equals(bb)) {
-                        j++;
-                        System.out.println("\t" + j + ". " + commonFamily + " " + commonBB);
-                      }
+                    if (commonBB != null) {
+                      j++;
+                      System.out.println("\t" + j + ". " + commonFamily + " " + commonBB);
                     }
                   }
                 }
@@ -311,15 +529,13 @@ public class Main {
 
               int countOfBBs = 0;
 
-              HashMap<String, BasicBlock> basicBlocks = malware.getBasicBlocks();
-              Iterator<Map.Entry<String, BasicBlock>> itB = basicBlocks.entrySet().iterator();
-              while (itB.hasNext()) {
-                Map.Entry<String, BasicBlock> nextB = itB.next();
-                BasicBlock bbM = nextB.getValue();
-                System.out.println(bbM.getCode());
+              BlockCounts basicBlocks = malware.getBasicBlocks();
+              for (int b = 0; b < basicBlocks.size(); b++) {
+                BlockKey key = malware.getFamily().getDictionary().getKey(basicBlocks.getId(b));
+                System.out.println(key);
                 
                 DecimalFormat df = new DecimalFormat("###,###.############");
-                List<TFD.FamilyBasicBlock> occurances = tfd.allOccurencesByHash(bbM.getCode());
+                List<TFD.FamilyBasicBlock> occurances = tfd.allOccurencesByHash(key);
                 System.out.println("Families: ");
                 for (TFD.FamilyBasicBlock occurance : occurances) {
                   System.out.print(occurance.getFamily().getName());
@@ -327,11 +543,11 @@ public class Main {
                           + df.format(occurance.getBasicBlock().getDistributionTermFrequency()) + ", TFR:"
                           + df.format(occurance.getBasicBlock().getTermFrequencyRatio()) + ", Count:"
                           + occurance.getBasicBlock().getCount() + ", Malwares Count: "
-                          + tfd.countOfMalwaresInFamilyByBB(occurance.getFamily(), occurance.getBasicBlock().getCode()));
+                          + tfd.countOfMalwaresInFamilyByBB(occurance.getFamily(), occurance.getBasicBlock().getKey()));
                 }
 
                 System.out.println("\n ---------------------------");
-                countOfBBs += bbM.getCount();
+                countOfBBs += basicBlocks.getCount(b);
               }
 
               System.out.println("\nCount of basic blocks: " + countOfBBs);
@@ -378,6 +594,16 @@ public class Main {
     System.out.println("e.g.");
     System.out.println("load c:\\families");
     System.out.println("load /home/user/families");
+    System.out.println("load snapshot /home/user/families.snapshot");
+  }
+
+  /**
+   * Save help
+   */
+  private void showSaveHelp() {
+    System.out.println("Save command is not valid!");
+    System.out.println("e.g.");
+    System.out.println("save snapshot /home/user/families.snapshot");
   }
 
   /**
@@ -392,12 +618,41 @@ public class Main {
       String[] parts = splitCommand(command);
       if (parts.length == 2) {
         loadFamiles(parts[1]);
+      } else if (parts.length == 3 && parts[1].equals("snapshot")) {
+        loadSnapshot(parts[2]);
       } else {
         showLoadHelp();
       }
     }
   }
 
+  /**
+   * Save command
+   * @param command
+   * @throws IOException 
+   */
+  private void saveCommand(String command) throws IOException {
+    String[] parts = splitCommand(command);
+    if (parts.length == 3 && parts[1].equals("snapshot")) {
+      final long startTime = System.nanoTime();
+      tfd.saveSnapshot(new File(parts[2]));
+      System.out.println("Snapshot saved to " + parts[2] + " in " + (System.nanoTime() - startTime) / 1000000 + " ms.");
+    } else {
+      showSaveHelp();
+    }
+  }
+
+  /**
+   * Loads the families from the given snapshot file
+   * @param path
+   * @throws IOException 
+   */
+  private void loadSnapshot(String path) throws IOException {
+    final long startTime = System.nanoTime();
+    tfd.loadSnapshot(new File(path));
+    System.out.println("Snapshot loaded from " + path + " in " + (System.nanoTime() - startTime) / 1000000 + " ms.");
+  }
+
   /**
    * Loads all families from the given path
    * @param path
@@ -407,10 +662,8 @@ public class Main {
     File file = new File(path);
     tfd.setFamiliesHome(file);
     tfd.loadFamilies();
-    tfd.calculateTermFrequencyRatio();
-    tfd.calculateDistributionTermFrequency();
-    //tfd.calculateMDFs();
-    //tfd.calculateFCs();
+    tfd.calculateModel(TFD.ScoreType.TFD);
+    tfd.getCalculator().showTimings();
   }
 
   /**
@@ -423,7 +676,6 @@ public class Main {
 
       while (it.hasNext()) {
         Family family = it.next().getValue();
-        Set<Map.Entry<String, BasicBlock>> basicBlocks = family.getBasicBlocks().entrySet();
 
         System.out.println(family.getName() + " malwares: " + family.getMalwares().size());
       }
@@ -446,10 +698,10 @@ public class Main {
         Family family = tfd.getFamilies().get(parts[1]);
 
         if (family != null) {
-          Iterator<Map.Entry<String, BasicBlock>> it = family.getBasicBlocks().entrySet().iterator();
+          Iterator<BasicBlock> it = family.getBasicBlocks().iterator();
 
           while (it.hasNext()) {
-            BasicBlock basicBlock = it.next().getValue();
+            BasicBlock basicBlock = it.next();
             System.out.println(basicBlock);
           }
 
@@ -473,13 +725,91 @@ public class Main {
     System.out.println("family Agent");
   }
 
+  /**
+   * Creates a TFD object with the configured count of threads
+   * @return 
+   */
+  private TFD newTFD() {
+    TFD result = new TFD();
+    if (threads > 0) {
+      result.setParallelism(threads);
+    }
+    result.setShard(shard);
+    return result;
+  }
+
   /**
    * Main method of the program. Program's entry point
-   * @param args 
+   * @param args --threads n sets the count of threads for loading and calculating the families;
+   * --serve port serves the classification and the queries over HTTP on the given port of the loopback address;
+   * --bind address serves them on the given address instead, e.g. 0.0.0.0 for all interfaces;
+   * --load path loads the families directory or the snapshot file at start;
+   * --pipe tfd/fc classifies the samples of the standard input instead of the command line, --early with early exit;
+   * --shards n starts n shards of the families of --load as child processes and classifies the files of the
+   * standard input against them; --shard i/n [--port p] serves shard i of n to a coordinator
    */
   public static void main(String[] args) {
     Main main = new Main();
-    main.run();
+
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--threads") && i + 1 < args.length) {
+        try {
+          main.threads = Integer.parseInt(args[++i]);
+        } catch (NumberFormatException ex) {
+          System.out.println("Threads should be an integer.");
+        }
+      } else if (args[i].equals("--load") && i + 1 < args.length) {
+        main.loadPath = args[++i];
+      } else if (args[i].equals("--pipe")) {
+        main.pipeType = TFD.ScoreType.TFD;
+        if (i + 1 < args.length && args[i + 1].equalsIgnoreCase("fc")) {
+          main.pipeType = TFD.ScoreType.FAM_CLASSIFIER;
+          i++;
+        } else if (i + 1 < args.length && args[i + 1].equalsIgnoreCase("tfd")) {
+          i++;
+        }
+      } else if (args[i].equals("--shards") && i + 1 < args.length) {
+        try {
+          main.shards = Integer.parseInt(args[++i]);
+        } catch (NumberFormatException ex) {
+          System.out.println("Shards should be an integer.");
+        }
+      } else if (args[i].equals("--shard") && i + 1 < args.length) {
+        try {
+          main.shard = Shard.parse(args[++i]);
+        } catch (IllegalArgumentException ex) {
+          System.out.println(ex.getMessage());
+          return;
+        }
+      } else if (args[i].equals("--port") && i + 1 < args.length) {
+        try {
+          main.shardPort = Integer.parseInt(args[++i]);
+        } catch (NumberFormatException ex) {
+          System.out.println("Port should be an integer.");
+        }
+      } else if (args[i].equals("--early")) {
+        main.pipeEarlyExit = true;
+      } else if (args[i].equals("--bind") && i + 1 < args.length) {
+        main.serveAddress = args[++i];
+      } else if (args[i].equals("--serve") && i + 1 < args.length) {
+        try {
+          main.servePort = Integer.parseInt(args[++i]);
+        } catch (NumberFormatException ex) {
+          System.out.println("Port should be an integer.");
+        }
+      }
+    }
+
+    if (main.pipeType != null || main.shards > 0) {
+      main.pipeOutput = new FileOutputStream(FileDescriptor.out);
+      System.setOut(System.err);
+    }
+
+    if (main.shards > 0) {
+      main.coordinate();
+    } else {
+      main.run();
+    }
   }
 
   /**
@@ -511,11 +841,47 @@ public class Main {
    * @return 
    */
   private String checkInitLoad() {
+    Properties initProperties = readInitFile();
+    return initProperties == null ? null : initProperties.getProperty("load");
+  }
+
+  /**
+   * Check if the init file has a snapshot to load instead of the families
+   * @return 
+   */
+  private String checkInitSnapshot() {
+    Properties initProperties = readInitFile();
+    return initProperties == null ? null : initProperties.getProperty("snapshot");
+  }
+
+  /**
+   * Check if the init file sets the count of threads
+   * @return count of threads or 0 if it is not set
+   */
+  private int checkInitThreads() {
+    Properties initProperties = readInitFile();
+    String result = initProperties == null ? null : initProperties.getProperty("threads");
+
+    if (result != null) {
+      try {
+        return Integer.parseInt(result.trim());
+      } catch (NumberFormatException ex) {
+        Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Reads the properties of the init file
+   * @return properties or null if the file can not be read
+   */
+  private Properties readInitFile() {
     Properties initProperties = new Properties();
-    try {
-      initProperties.load(new FileInputStream(initFile));
-      String result = initProperties.getProperty("load");
-      return result;
+    try (FileInputStream input = new FileInputStream(initFile)) {
+      initProperties.load(input);
+      return initProperties;
     } catch (FileNotFoundException ex) {
       Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
     } catch (IOException ex) {
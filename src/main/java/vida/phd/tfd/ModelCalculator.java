@@ -0,0 +1,512 @@
+package vida.phd.tfd;
+
+import vida.phd.tfd.entity.Family;
+import vida.phd.tfd.index.BlockIndex;
+import vida.phd.tfd.index.Postings;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Calculates TFR, TFD, MDF and FC of the families in parallel on a ForkJoinPool. 
+ * <br/>The work is split across families and ranges of their BasicBlocks. The sum of the TFR of a BasicBlock over all 
+ * families is reduced from its Postings in the order of family ids, so the result does not depend on the scheduling.
+ * <br/>The duration of each phase is kept for reporting. The durations are published as an immutable map, so they
+ * may be printed by any thread while the next calculation runs.
+ * @author Vida
+ */
+public class ModelCalculator {
+
+  /**
+   * Max count of BasicBlocks which are calculated by one task
+   */
+  private static final int GRAIN = 1 << 14;
+
+  /**
+   * Pool which runs the tasks
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * Duration of the last run of each phase in nanoseconds, by phase name; it is replaced, never changed
+   */
+  private volatile Map<String, Long> timings;
+
+  /**
+   * Constructor which takes the count of threads
+   * @param parallelism 
+   */
+  public ModelCalculator(int parallelism) {
+    this(new ForkJoinPool(parallelism));
+  }
+
+  /**
+   * Constructor which takes the pool
+   * @param pool 
+   */
+  public ModelCalculator(ForkJoinPool pool) {
+    this.pool = pool;
+    this.timings = Collections.emptyMap();
+  }
+
+  /**
+   * Calculates TermFrequencyRatio of all BasicBlocks of the given families
+   * @param families 
+   */
+  public void calculateTermFrequencyRatio(Family[] families) {
+    run("TFR", families, new RangeTask() {
+      @Override
+      public void run(Family family, int from, int to) {
+        int[] counts = family.getBlockCounts().getCounts();
+        double[] tfrs = family.getTermFrequencyRatios();
+        double totalBasicBlocks = family.countOfBasicBlocks();
+
+        for (int i = from; i < to; i++) {
+          tfrs[i] = counts[i] / totalBasicBlocks;
+        }
+      }
+    });
+  }
+
+  /**
+   * Sums the TermFrequencyRatio of every BasicBlock over all families of the index, in the order of family ids
+   * @param index
+   * @return sums by BasicBlock id
+   */
+  public double[] calculateTermFrequencyRatioSums(final BlockIndex index) {
+    final long start = System.nanoTime();
+    final double[] sums = new double[index.getDictionary().size()];
+    final Family[] families = index.getFamilies();
+
+    pool.invoke(new Ids(0, sums.length, new IdTask() {
+      @Override
+      public void run(int from, int to) {
+        for (int id = from; id < to; id++) {
+          Postings postings = index.get(id);
+
+          if (postings != null) {
+            double sum = 0;
+            for (int i = 0; i < postings.size(); i++) {
+              sum += families[postings.getFamilyId(i)].getTermFrequencyRatios()[postings.getPosition(i)];
+            }
+            sums[id] = sum;
+          }
+        }
+      }
+    }));
+
+    record("TFR sums", System.nanoTime() - start);
+    return sums;
+  }
+
+  /**
+   * Calculates DistributionTermFrequency of all BasicBlocks of the given families
+   * @param families
+   * @param sums of TermFrequencyRatio by BasicBlock id
+   */
+  public void calculateDistributionTermFrequency(Family[] families, final double[] sums) {
+    run("TFD", families, new RangeTask() {
+      @Override
+      public void run(Family family, int from, int to) {
+        int[] ids = family.getBlockCounts().getIds();
+        double[] tfrs = family.getTermFrequencyRatios();
+        double[] dtfs = family.getDistributionTermFrequencies();
+
+        for (int i = from; i < to; i++) {
+          double sumOfOthers = sums[ids[i]] - tfrs[i];
+          dtfs[i] = tfrs[i] - sumOfOthers;
+        }
+        family.metricsChanged();
+      }
+    });
+  }
+
+  /**
+   * Updates the sums of TermFrequencyRatio of the BasicBlocks of the given families, e.g. after BasicBlocks are added 
+   * to them; the sums of the other BasicBlocks do not change.
+   * @param index
+   * @param families
+   * @param sums of TermFrequencyRatio by BasicBlock id
+   * @return the sums, grown to the size of the dictionary if new BasicBlocks are added
+   */
+  public double[] updateTermFrequencyRatioSums(final BlockIndex index, Family[] families, double[] sums) {
+    final double[] result = sums.length < index.getDictionary().size() ? Arrays.copyOf(sums, index.getDictionary().size()) : sums;
+    final Family[] allFamilies = index.getFamilies();
+
+    run("TFR sums", families, new RangeTask() {
+      @Override
+      public void run(Family family, int from, int to) {
+        int[] ids = family.getBlockCounts().getIds();
+
+        for (int i = from; i < to; i++) {
+          Postings postings = index.get(ids[i]);
+          double sum = 0;
+          for (int j = 0; j < postings.size(); j++) {
+            sum += allFamilies[postings.getFamilyId(j)].getTermFrequencyRatios()[postings.getPosition(j)];
+          }
+          result[ids[i]] = sum;
+        }
+      }
+    });
+
+    return result;
+  }
+
+  /**
+   * Updates DistributionTermFrequency, and FC if it is asked, of the BasicBlocks of the given families in every family 
+   * of the index which has them. The sums of those BasicBlocks, and the MDF of the given families for FC, must be updated before.
+   * @param index
+   * @param families
+   * @param sums of TermFrequencyRatio by BasicBlock id
+   * @param fcs true if FC should be updated too
+   */
+  public void updateDistributionTermFrequency(final BlockIndex index, Family[] families, final double[] sums, final boolean fcs) {
+    final Family[] allFamilies = index.getFamilies();
+
+    run("TFD", families, new RangeTask() {
+      @Override
+      public void run(Family family, int from, int to) {
+        int[] ids = family.getBlockCounts().getIds();
+
+        for (int i = from; i < to; i++) {
+          Postings postings = index.get(ids[i]);
+
+          for (int j = 0; j < postings.size(); j++) {
+            Family other = allFamilies[postings.getFamilyId(j)];
+            int position = postings.getPosition(j);
+            double tfr = other.getTermFrequencyRatios()[position];
+            double dtf = tfr - (sums[ids[i]] - tfr);
+
+            other.getDistributionTermFrequencies()[position] = dtf;
+            other.metricsChanged();
+            if (fcs) {
+              other.getFCs()[position] = other.getMDFs()[position] * dtf;
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Calculates malware distribution frequency of all BasicBlocks of the families of the index
+   * @param index 
+   */
+  public void calculateMDFs(BlockIndex index) {
+    calculateMDFs(index, index.getFamilies());
+  }
+
+  /**
+   * Calculates malware distribution frequency of all BasicBlocks of the given families of the index
+   * @param index 
+   * @param families 
+   */
+  public void calculateMDFs(final BlockIndex index, Family[] families) {
+    run("MDF", families, new RangeTask() {
+      @Override
+      public void run(Family family, int from, int to) {
+        int[] ids = family.getBlockCounts().getIds();
+        double[] mdfs = family.getMDFs();
+        double countOfMalwares = family.getMalwares().size();
+
+        for (int i = from; i < to; i++) {
+          Postings postings = index.get(ids[i]);
+          int malwaresCount = postings == null ? 0 : index.countOfMalwaresInFamily(postings, family.getId());
+          mdfs[i] = malwaresCount / countOfMalwares;
+        }
+      }
+    });
+  }
+
+  /**
+   * Calculates the FamilyClassifier of all BasicBlocks of the given families
+   * @param families 
+   */
+  public void calculateFCs(Family[] families) {
+    run("FC", families, new RangeTask() {
+      @Override
+      public void run(Family family, int from, int to) {
+        double[] mdfs = family.getMDFs();
+        double[] dtfs = family.getDistributionTermFrequencies();
+        double[] fcs = family.getFCs();
+
+        for (int i = from; i < to; i++) {
+          fcs[i] = mdfs[i] * dtfs[i];
+        }
+      }
+    });
+  }
+
+  /**
+   * Finds the family with the best TFD, or FC, of every BasicBlock of the index. Among equal measures the family 
+   * with the greatest id wins, as it is the first after the occurrences are sorted and reversed.
+   * @param index
+   * @param fc true to compare FC instead of TFD
+   * @return family ids by BasicBlock id; -1 if no family has the BasicBlock
+   */
+  public int[] calculateWinners(final BlockIndex index, final boolean fc) {
+    final long start = System.nanoTime();
+    final int[] winners = new int[index.getDictionary().size()];
+
+    pool.invoke(new Ids(0, winners.length, new IdTask() {
+      @Override
+      public void run(int from, int to) {
+        for (int id = from; id < to; id++) {
+          winners[id] = winner(index, id, fc);
+        }
+      }
+    }));
+
+    record(fc ? "FC winners" : "TFD winners", System.nanoTime() - start);
+    return winners;
+  }
+
+  /**
+   * Finds again the best family of the BasicBlocks of the given families, e.g. after their measures are updated
+   * @param index
+   * @param families
+   * @param winners family ids by BasicBlock id
+   * @param fc true to compare FC instead of TFD
+   * @return the winners, grown to the size of the dictionary if new BasicBlocks are added
+   */
+  public int[] updateWinners(final BlockIndex index, Family[] families, int[] winners, final boolean fc) {
+    final int[] result;
+    if (winners.length < index.getDictionary().size()) {
+      result = Arrays.copyOf(winners, index.getDictionary().size());
+      Arrays.fill(result, winners.length, result.length, -1);
+    } else {
+      result = winners;
+    }
+
+    run(fc ? "FC winners" : "TFD winners", families, new RangeTask() {
+      @Override
+      public void run(Family family, int from, int to) {
+        int[] ids = family.getBlockCounts().getIds();
+
+        for (int i = from; i < to; i++) {
+          result[ids[i]] = winner(index, ids[i], fc);
+        }
+      }
+    });
+
+    return result;
+  }
+
+  /**
+   * 
+   * @param index
+   * @param blockId
+   * @param fc true to compare FC instead of TFD
+   * @return id of the family with the best measure of the given BasicBlock or -1 if no family has it
+   */
+  static int winner(BlockIndex index, int blockId, boolean fc) {
+    Postings postings = index.get(blockId);
+    int result = -1;
+
+    if (postings != null) {
+      double best = 0;
+
+      for (int i = 0; i < postings.size(); i++) {
+        Family family = index.getFamily(postings.getFamilyId(i));
+        int position = postings.getPosition(i);
+        double measure = fc ? family.getFCs()[position] : family.getDistributionTermFrequencies()[position];
+
+        if (result < 0 || measure >= best) {
+          result = family.getId();
+          best = measure;
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * 
+   * @return duration of the last run of each phase in nanoseconds, by phase name; it can not be changed
+   */
+  public Map<String, Long> getTimings() {
+    return timings;
+  }
+
+  /**
+   * Forgets the durations of the phases, before the next calculation
+   */
+  public synchronized void clearTimings() {
+    timings = Collections.emptyMap();
+  }
+
+  /**
+   * Publishes a copy of the durations with the given duration of the phase
+   * @param phase
+   * @param duration in nanoseconds
+   */
+  private synchronized void record(String phase, long duration) {
+    Map<String, Long> result = new LinkedHashMap<>(timings);
+    result.put(phase, duration);
+    timings = Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Prints the duration of the last run of each phase
+   */
+  public void showTimings() {
+    StringBuilder builder = new StringBuilder();
+
+    for (Map.Entry<String, Long> timing : getTimings().entrySet()) {
+      if (builder.length() > 0) {
+        builder.append(", ");
+      }
+      builder.append(MessageFormat.format("{0}: {1} ms", timing.getKey(), timing.getValue() / 1000000));
+    }
+
+    System.out.println(MessageFormat.format("Calculated on {0} threads. {1}", pool.getParallelism(), builder));
+  }
+
+  /**
+   * 
+   * @return count of threads
+   */
+  public int getParallelism() {
+    return pool.getParallelism();
+  }
+
+  /**
+   * Stops the threads of the pool
+   */
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Runs the given task over all BasicBlocks of the given families, split into ranges, and keeps the duration.
+   * @param phase
+   * @param families
+   * @param task 
+   */
+  private void run(String phase, Family[] families, RangeTask task) {
+    final long start = System.nanoTime();
+    List<Range> ranges = new ArrayList<>();
+
+    for (Family family : families) {
+      int size = family.countOfDistinctBasicBlocks();
+      for (int from = 0; from < size; from += GRAIN) {
+        ranges.add(new Range(family, from, Math.min(size, from + GRAIN)));
+      }
+    }
+
+    pool.invoke(new Ranges(ranges, 0, ranges.size(), task));
+    record(phase, System.nanoTime() - start);
+  }
+
+  /**
+   * Work on a range of the BasicBlocks of a family
+   */
+  private interface RangeTask {
+
+    /**
+     * Runs the work on the given range
+     * @param family
+     * @param from inclusive position
+     * @param to exclusive position
+     */
+    void run(Family family, int from, int to);
+  }
+
+  /**
+   * Range of the BasicBlocks of a family
+   */
+  private static class Range {
+
+    private final Family family;
+    private final int from;
+    private final int to;
+
+    Range(Family family, int from, int to) {
+      this.family = family;
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  /**
+   * Runs a RangeTask over a list of ranges by splitting the list in halves
+   */
+  private static class Ranges extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<Range> ranges;
+    private final int from;
+    private final int to;
+    private final RangeTask task;
+
+    Ranges(List<Range> ranges, int from, int to, RangeTask task) {
+      this.ranges = ranges;
+      this.from = from;
+      this.to = to;
+      this.task = task;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= 1) {
+        if (to > from) {
+          Range range = ranges.get(from);
+          task.run(range.family, range.from, range.to);
+        }
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Ranges(ranges, from, mid, task), new Ranges(ranges, mid, to, task));
+      }
+    }
+  }
+
+  /**
+   * Work on a range of BasicBlock ids
+   */
+  private interface IdTask {
+
+    /**
+     * Runs the work on the given range
+     * @param from inclusive id
+     * @param to exclusive id
+     */
+    void run(int from, int to);
+  }
+
+  /**
+   * Runs an IdTask over a range of BasicBlock ids by splitting it in halves until it is not bigger than the grain
+   */
+  private static class Ids extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final IdTask task;
+
+    Ids(int from, int to, IdTask task) {
+      this.from = from;
+      this.to = to;
+      this.task = task;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= GRAIN) {
+        task.run(from, to);
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Ids(from, mid, task), new Ids(mid, to, task));
+      }
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package vida.phd.tfd;
+
+import vida.phd.tfd.entity.BlockKey;
+import vida.phd.tfd.entity.Family;
+import vida.phd.tfd.index.BlockDictionary;
+import vida.phd.tfd.index.BlockIndex;
+
+import java.util.HashMap;
+
+/**
+ * One version of the model: the families, their inverted index and the calculated measures. A version is never
+ * changed once it is published, so a query or a classification pins the current version and reads it without any lock
+ * while the next version is built.
+ * <br/>The next version copies only the families it changes, and each copy copies only the metric columns which are
+ * written; the other families and columns, the malware and the dictionary are shared between versions, as none of them
+ * is changed once it is published and the dictionary only grows.
+ * @author Vida
+ */
+public class ModelVersion {
+
+  /**
+   * Number of the version; it grows by one with every published version
+   */
+  private final long number;
+
+  /**
+   * Families by name
+   */
+  private final HashMap<String, Family> families;
+
+  /**
+   * Dictionary of the hashes of the BasicBlocks of all families
+   */
+  private final BlockDictionary dictionary;
+
+  /**
+   * Inverted index of the BasicBlocks of all families
+   */
+  private final BlockIndex index;
+
+  /**
+   * Sum of the TermFrequencyRatio of each BasicBlock in all families by the BasicBlock id; null until TFD is calculated
+   */
+  private final double[] termFrequencyRatioSums;
+
+  /**
+   * Id of the family with the best TFD of each BasicBlock by the BasicBlock id; null until TFD is calculated
+   */
+  private final int[] tfdWinners;
+
+  /**
+   * Id of the family with the best FC of each BasicBlock by the BasicBlock id; null until FC is calculated
+   */
+  private final int[] fcWinners;
+
+  /**
+   * True when TFR and TFD of the families are calculated
+   */
+  private final boolean tfdCalculated;
+
+  /**
+   * True when MDF and FC of the families are calculated
+   */
+  private final boolean fcCalculated;
+
+  /**
+   * Constructor which takes all fields
+   * @param number
+   * @param families
+   * @param dictionary
+   * @param index
+   * @param termFrequencyRatioSums
+   * @param tfdWinners
+   * @param fcWinners
+   * @param tfdCalculated
+   * @param fcCalculated
+   */
+  public ModelVersion(long number, HashMap<String, Family> families, BlockDictionary dictionary, BlockIndex index, double[] termFrequencyRatioSums,
+          int[] tfdWinners, int[] fcWinners, boolean tfdCalculated, boolean fcCalculated) {
+    this.number = number;
+    this.families = families;
+    this.dictionary = dictionary;
+    this.index = index;
+    this.termFrequencyRatioSums = termFrequencyRatioSums;
+    this.tfdWinners = tfdWinners;
+    this.fcWinners = fcWinners;
+    this.tfdCalculated = tfdCalculated;
+    this.fcCalculated = fcCalculated;
+  }
+
+  /**
+   * Empty version without any family
+   * @return version 0
+   */
+  public static ModelVersion empty() {
+    BlockDictionary dictionary = new BlockDictionary();
+    return new ModelVersion(0, new HashMap<String, Family>(), dictionary, BlockIndex.build(new Family[0], dictionary), null, null, null, false, false);
+  }
+
+  /**
+   * Finds the family which has the best measure of the given BasicBlock based on the ScoreType parameter.
+   * <br/>Once the measures are calculated, it is read from the table of the best families by BasicBlock id.
+   * @param key
+   * @param type
+   * @return id of the family or -1 if no family has the BasicBlock
+   */
+  public int bestFamilyId(BlockKey key, TFD.ScoreType type) {
+    return bestFamilyId(dictionary.find(key), type);
+  }
+
+  /**
+   * Finds the family which has the best measure of the given BasicBlock of the dictionary of the families.
+   * <br/>Among equal measures the family with the greatest id wins.
+   * @param blockId
+   * @param type
+   * @return id of the family or -1 if no family has the BasicBlock
+   */
+  public int bestFamilyId(int blockId, TFD.ScoreType type) {
+    boolean fc = type == TFD.ScoreType.FAM_CLASSIFIER;
+    int[] winners = fc ? fcWinners : tfdWinners;
+
+    if (winners != null) {
+      return blockId >= 0 && blockId < winners.length ? winners[blockId] : -1;
+    }
+
+    return blockId >= 0 && blockId < dictionary.size() ? ModelCalculator.winner(index, blockId, fc) : -1;
+  }
+
+  /**
+   * Finds the family which has the best measure of each BasicBlock of the dictionary based on the ScoreType parameter.
+   * <br/>If the measures of this version are not calculated, e.g. another version was published after the model was
+   * calculated, the winners are resolved from the index now, so the caller should keep them for all its malware.
+   * @param type
+   * @return family ids by BasicBlock id; -1 if no family has the BasicBlock
+   */
+  public int[] getWinners(TFD.ScoreType type) {
+    boolean fc = type == TFD.ScoreType.FAM_CLASSIFIER;
+    int[] winners = fc ? fcWinners : tfdWinners;
+
+    if (winners == null) {
+      winners = new int[dictionary.size()];
+      for (int id = 0; id < winners.length; id++) {
+        winners[id] = ModelCalculator.winner(index, id, fc);
+      }
+    }
+
+    return winners;
+  }
+
+  /**
+   * Scores the families for the given BasicBlocks of a malware; each BasicBlock is one vote for its winner. If leaders
+   * are given, it stops as soon as the remaining BasicBlocks can not change the best family; the scores are partial then.
+   * <br/>The single, batch and pipe classifications all score by it; they only pass different ids and winners.
+   * @param winners family ids by BasicBlock id; -1 if no family has the BasicBlock
+   * @param blockIds ids of the BasicBlocks of the malware; ids which are -1 or out of the winners are not voted
+   * @param size count of the BasicBlocks in blockIds
+   * @param votes scores by family id, which the votes are added to; they must be zero if leaders are given
+   * @param leaders or null to score all BasicBlocks
+   * @return count of the scored BasicBlocks
+   */
+  public static int score(int[] winners, int[] blockIds, int size, int[] votes, VoteLeaders leaders) {
+    if (leaders != null) {
+      leaders.reset();
+    }
+
+    for (int i = 0; i < size; i++) {
+      int id = blockIds[i];
+      int best = id >= 0 && id < winners.length ? winners[id] : -1;
+
+      if (best >= 0) {
+        if (leaders == null) {
+          votes[best]++;
+        } else {
+          leaders.vote(votes, best);
+
+          if (leaders.isDecided(votes, size - i - 1)) {
+            return i + 1;
+          }
+        }
+      }
+    }
+
+    return size;
+  }
+
+  /**
+   * Based on the given scores of families, finds the best matching family in one pass.
+   * <br/>Among equal scores the family with the smallest id, i.e. the first name, wins.
+   * @param scores by family id
+   * @return best matching family or null if no family has any score
+   */
+  public Family findResultFamily(int[] scores) {
+    int max = 0;
+    int best = -1;
+
+    for (int id = 0; id < index.countOfFamilies(); id++) {
+      if (scores[id] > max) {
+        max = scores[id];
+        best = id;
+      }
+    }
+
+    return best < 0 ? null : index.getFamily(best);
+  }
+
+  /**
+   *
+   * @return number of the version
+   */
+  public long getNumber() {
+    return number;
+  }
+
+  /**
+   *
+   * @return families by name; must not be changed
+   */
+  public HashMap<String, Family> getFamilies() {
+    return families;
+  }
+
+  /**
+   *
+   * @return dictionary
+   */
+  public BlockDictionary getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   *
+   * @return index
+   */
+  public BlockIndex getIndex() {
+    return index;
+  }
+
+  /**
+   *
+   * @return sums of TermFrequencyRatio by BasicBlock id or null if TFD is not calculated
+   */
+  public double[] getTermFrequencyRatioSums() {
+    return termFrequencyRatioSums;
+  }
+
+  /**
+   *
+   * @return family ids with the best TFD by BasicBlock id or null if TFD is not calculated
+   */
+  public int[] getTfdWinners() {
+    return tfdWinners;
+  }
+
+  /**
+   *
+   * @return family ids with the best FC by BasicBlock id or null if FC is not calculated
+   */
+  public int[] getFcWinners() {
+    return fcWinners;
+  }
+
+  /**
+   *
+   * @return true when TFR and TFD are calculated
+   */
+  public boolean isTfdCalculated() {
+    return tfdCalculated;
+  }
+
+  /**
+   *
+   * @return true when MDF and FC are calculated
+   */
+  public boolean isFcCalculated() {
+    return fcCalculated;
+  }
+}
@@ -0,0 +1,454 @@
+package vida.phd.tfd;
+
+import vida.phd.tfd.entity.BlockKey;
+import vida.phd.tfd.entity.Family;
+import vida.phd.tfd.index.BlockDictionary;
+import vida.phd.tfd.index.BlockIndex;
+import vida.phd.tfd.io.BlockReader;
+import vida.phd.tfd.util.Json;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classifies a stream of malware samples without the command line and writes one JSON line with the verdict of
+ * each sample. Nothing is added to the families.
+ * <br/>Each line of the input is the path of a malware file, or ">name" which starts a sample whose BasicBlocks
+ * follow, one hash per line, until a blank line.
+ * <br/>The samples go through a pipeline of a reader, parsers, a scorer and a writer, connected by bounded queues:
+ * the reader is the calling thread, the parsers read the files on their own threads and look their BasicBlocks up
+ * in the dictionary of the model, the scorer votes for the families and the writer writes the verdicts. A slow
+ * stage blocks the stages before it, so the memory stays bounded however long the input is.
+ * <br/>All samples are scored against the version of the model which is current when the pipe starts. The
+ * verdicts are written in the order the samples are parsed, which may differ from the input; each verdict has
+ * the name of its sample.
+ * <br/>If any stage fails, e.g. the output is closed, the reader stops at once and the pipe fails, so no verdict is
+ * missed silently.
+ * @author Vida
+ */
+public class PipeClassifier {
+
+  /**
+   * Count of the elements of each queue per parser thread
+   */
+  private static final int QUEUE_SIZE = 16;
+
+  /**
+   * Marks the end of the samples
+   */
+  private static final Sample END_OF_SAMPLES = new Sample(null, null, null);
+
+  /**
+   * Marks the end of the parsed samples of one parser
+   */
+  private static final Parsed END_OF_PARSED = new Parsed(null, null, null);
+
+  /**
+   * Milliseconds the reader waits for a full queue before it checks the stages again
+   */
+  private static final long CHECK_INTERVAL = 100;
+
+  /**
+   * Marks the end of the verdicts; a verdict is never empty
+   */
+  private static final String END_OF_VERDICTS = "";
+
+  /**
+   * Model the samples are scored against
+   */
+  private final TFD tfd;
+
+  /**
+   * Count of the parser threads
+   */
+  private final int threads;
+
+  /**
+   * True if the scoring of a sample stops as soon as the remaining BasicBlocks can not change the result
+   */
+  private final boolean earlyExit;
+
+  /**
+   * Constructor which takes the model, the count of parser threads and whether the scoring may exit early
+   * @param tfd
+   * @param threads
+   * @param earlyExit
+   */
+  public PipeClassifier(TFD tfd, int threads, boolean earlyExit) {
+    this.tfd = tfd;
+    this.threads = Math.max(1, threads);
+    this.earlyExit = earlyExit;
+  }
+
+  /**
+   * Classifies all samples of the given input until its end and writes their verdicts to the given output
+   * @param input
+   * @param output
+   * @param type
+   * @return count of the samples
+   * @throws IOException if the input can not be read, a stage fails or the pipe is interrupted
+   */
+  public int classify(InputStream input, OutputStream output, final TFD.ScoreType type) throws IOException {
+    tfd.calculateModel(type);
+    final ModelVersion model = tfd.getModel();
+    final BlockingQueue<Sample> samples = new ArrayBlockingQueue<>(threads * QUEUE_SIZE);
+    final BlockingQueue<Parsed> parsed = new ArrayBlockingQueue<>(threads * QUEUE_SIZE);
+    final BlockingQueue<String> verdicts = new ArrayBlockingQueue<>(threads * QUEUE_SIZE);
+    final Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    ExecutorService executor = Executors.newFixedThreadPool(threads + 2);
+    List<Future<Void>> stages = new ArrayList<>(threads + 2);
+    int result = 0;
+
+    try {
+      for (int i = 0; i < threads; i++) {
+        stages.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            parse(model, samples, parsed);
+            return null;
+          }
+        }));
+      }
+
+      stages.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          score(model, type, parsed, verdicts);
+          return null;
+        }
+      }));
+
+      stages.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          write(writer, verdicts);
+          return null;
+        }
+      }));
+
+      result = read(input, samples, stages);
+      for (int i = 0; i < threads; i++) {
+        put(samples, END_OF_SAMPLES, stages);
+      }
+
+      for (Future<Void> stage : stages) {
+        stage.get();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Classification of the samples was interrupted");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new IOException("Classification of the samples failed: " + ex.getCause(), ex.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    return result;
+  }
+
+  /**
+   * Puts the given sample into the queue of the samples, unless a stage has failed
+   * @param samples
+   * @param sample
+   * @param stages
+   * @throws InterruptedException
+   * @throws ExecutionException if a stage has failed
+   */
+  private static void put(BlockingQueue<Sample> samples, Sample sample, List<Future<Void>> stages) throws InterruptedException, ExecutionException {
+    checkStages(stages);
+
+    while (!samples.offer(sample, CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+      checkStages(stages);
+    }
+  }
+
+  /**
+   * Throws the failure of the first stage which has failed
+   * @param stages
+   * @throws InterruptedException
+   * @throws ExecutionException if a stage has failed
+   */
+  private static void checkStages(List<Future<Void>> stages) throws InterruptedException, ExecutionException {
+    for (Future<Void> stage : stages) {
+      if (stage.isDone()) {
+        stage.get();
+      }
+    }
+  }
+
+  /**
+   * Reads the samples of the given input into the given queue until the end of the input or until a stage fails
+   * @param input
+   * @param samples
+   * @param stages
+   * @return count of the samples
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ExecutionException if a stage has failed
+   */
+  private int read(InputStream input, BlockingQueue<Sample> samples, List<Future<Void>> stages) throws IOException, InterruptedException, 
+          ExecutionException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+    String name = null;
+    List<String> hashes = null;
+    int result = 0;
+    String line;
+
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+
+      if (hashes != null && !line.isEmpty() && !line.startsWith(">")) {
+        hashes.add(line);
+        continue;
+      }
+
+      if (hashes != null) {
+        put(samples, new Sample(name, null, hashes), stages);
+        result++;
+        hashes = null;
+      }
+
+      if (line.startsWith(">")) {
+        name = line.substring(1).trim();
+        hashes = new ArrayList<>();
+      } else if (!line.isEmpty()) {
+        put(samples, new Sample(line, new File(line), null), stages);
+        result++;
+      }
+    }
+
+    if (hashes != null) {
+      put(samples, new Sample(name, null, hashes), stages);
+      result++;
+    }
+
+    return result;
+  }
+
+  /**
+   * Parses the samples of the given queue into the ids of their distinct BasicBlocks in the dictionary of the model,
+   * in the order they are first seen. The BasicBlocks which the model does not have are skipped.
+   * @param model
+   * @param samples
+   * @param parsed
+   * @throws InterruptedException
+   */
+  private void parse(ModelVersion model, BlockingQueue<Sample> samples, BlockingQueue<Parsed> parsed) throws InterruptedException {
+    final BlockDictionary dictionary = model.getDictionary();
+    final BlockReader reader = new BlockReader(dictionary, false);
+    final BitSet seen = new BitSet();
+    final int[][] ids = {new int[1024]};
+    final int[] size = new int[1];
+    BlockReader.Handler handler = new BlockReader.Handler() {
+      @Override
+      public void block(int blockId) {
+        if (blockId >= 0 && !seen.get(blockId)) {
+          seen.set(blockId);
+
+          if (size[0] == ids[0].length) {
+            ids[0] = Arrays.copyOf(ids[0], size[0] * 2);
+          }
+          ids[0][size[0]++] = blockId;
+        }
+      }
+    };
+
+    try {
+      Sample sample;
+      while ((sample = samples.take()) != END_OF_SAMPLES) {
+        seen.clear();
+        size[0] = 0;
+
+        try {
+          if (sample.file != null) {
+            reader.read(sample.file, handler);
+          } else {
+            for (String hash : sample.hashes) {
+              handler.block(dictionary.find(BlockKey.of(hash)));
+            }
+          }
+
+          parsed.put(new Parsed(sample, Arrays.copyOf(ids[0], size[0]), null));
+        } catch (IOException ex) {
+          parsed.put(new Parsed(sample, null, ex.toString()));
+        }
+      }
+    } finally {
+      parsed.put(END_OF_PARSED);
+    }
+  }
+
+  /**
+   * Scores the parsed samples of the given queue and turns them into verdicts, until every parser is done
+   * @param model
+   * @param type
+   * @param parsed
+   * @param verdicts
+   * @throws InterruptedException
+   */
+  private void score(ModelVersion model, TFD.ScoreType type, BlockingQueue<Parsed> parsed, BlockingQueue<String> verdicts) throws InterruptedException {
+    BlockIndex index = model.getIndex();
+    int[] winners = model.getWinners(type);
+    int[] votes = new int[index.countOfFamilies()];
+    VoteLeaders leaders = earlyExit ? new VoteLeaders() : null;
+    int running = threads;
+
+    try {
+      while (running > 0) {
+        Parsed next = parsed.take();
+
+        if (next == END_OF_PARSED) {
+          running--;
+          continue;
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"sample\":");
+        Json.string(json, next.sample.name);
+
+        if (next.error != null) {
+          json.append(",\"error\":");
+          Json.string(json, next.error);
+        } else {
+          Arrays.fill(votes, 0);
+          int scored = ModelVersion.score(winners, next.blockIds, next.blockIds.length, votes, leaders);
+          Family family = model.findResultFamily(votes);
+
+          json.append(",\"model\":").append(model.getNumber());
+          json.append(",\"family\":");
+          Json.string(json, family == null ? null : family.getName());
+          json.append(",\"basicBlocks\":").append(next.blockIds.length);
+          json.append(",\"scoredBasicBlocks\":").append(scored);
+          json.append(",\"scores\":{");
+          for (int id = 0; id < votes.length; id++) {
+            if (id > 0) {
+              json.append(',');
+            }
+            Json.string(json, index.getFamily(id).getName());
+            json.append(':').append(votes[id]);
+          }
+          json.append('}');
+        }
+
+        json.append('}');
+        verdicts.put(json.toString());
+      }
+    } finally {
+      verdicts.put(END_OF_VERDICTS);
+    }
+  }
+
+  /**
+   * Writes the verdicts of the given queue, one per line. The output is flushed whenever the queue is empty, so
+   * the next program of the pipe gets the verdicts as soon as they are ready. If the output fails, it fails at once,
+   * so the reader stops and the other stages are stopped.
+   * @param writer
+   * @param verdicts
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private void write(Writer writer, BlockingQueue<String> verdicts) throws IOException, InterruptedException {
+    String verdict;
+
+    while (!(verdict = verdicts.take()).isEmpty()) {
+      writer.write(verdict);
+      writer.write('\n');
+
+      if (verdicts.isEmpty()) {
+        writer.flush();
+      }
+    }
+
+    writer.flush();
+  }
+
+  /**
+   * Malware sample of the input
+   */
+  private static class Sample {
+
+    /**
+     * Path of the file or name of the sample
+     */
+    private final String name;
+
+    /**
+     * Malware file; null if the BasicBlocks are given in the input
+     */
+    private final File file;
+
+    /**
+     * Hashes of the BasicBlocks; null if the sample is a file
+     */
+    private final List<String> hashes;
+
+    /**
+     * Constructor which takes all fields
+     * @param name
+     * @param file
+     * @param hashes
+     */
+    private Sample(String name, File file, List<String> hashes) {
+      this.name = name;
+      this.file = file;
+      this.hashes = hashes;
+    }
+  }
+
+  /**
+   * Sample whose BasicBlocks are looked up in the model
+   */
+  private static class Parsed {
+
+    /**
+     * Sample
+     */
+    private final Sample sample;
+
+    /**
+     * Ids of the distinct BasicBlocks of the sample which the model has; null if it could not be read
+     */
+    private final int[] blockIds;
+
+    /**
+     * Error message if the sample could not be read
+     */
+    private final String error;
+
+    /**
+     * Constructor which takes all fields
+     * @param sample
+     * @param blockIds
+     * @param error
+     */
+    private Parsed(Sample sample, int[] blockIds, String error) {
+      this.sample = sample;
+      this.blockIds = blockIds;
+      this.error = error;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package vida.phd.tfd;
+
+import vida.phd.tfd.index.BlockDictionary;
+import vida.phd.tfd.io.BlockReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Scores a malware file while it is read, without building the malware. Each line is looked up in the dictionary
+ * of the model and each distinct known BasicBlock adds a vote for its best family at once.
+ * <br/>Only the votes by family id and a bit set of the seen BasicBlock ids of the model are kept, so the memory
+ * does not grow with the size of the file. Both are reused for every file; a scorer is not thread safe.
+ * <br/>The count of the distinct BasicBlocks is not known before the whole file is read, so a streamed file is
+ * always scored exactly.
+ * @author Vida
+ */
+public class StreamingScorer implements BlockReader.Handler {
+
+  /**
+   * Version of the model the files are scored against
+   */
+  private final ModelVersion model;
+
+  /**
+   * Dictionary of the model
+   */
+  private final BlockDictionary dictionary;
+
+  /**
+   * Reader which looks the BasicBlocks up in the dictionary of the model
+   */
+  private final BlockReader reader;
+
+  /**
+   * Ids of the BasicBlocks of the model which are already seen in the current file
+   */
+  private final BitSet seen;
+
+  /**
+   * Scores by family id
+   */
+  private int[] votes;
+
+  /**
+   * ScoreType of the current file
+   */
+  private TFD.ScoreType type;
+
+  /**
+   * Constructor which takes the version of the model; its measures must be calculated before the files are scored
+   * @param model
+   */
+  public StreamingScorer(ModelVersion model) {
+    this.model = model;
+    this.dictionary = model.getDictionary();
+    this.reader = new BlockReader(dictionary, false);
+    this.seen = new BitSet();
+    this.votes = new int[0];
+  }
+
+  /**
+   * Scores the given file
+   * @param file
+   * @param type
+   * @return scores by family id; the array is reused by the next file
+   * @throws IOException
+   */
+  public int[] score(File file, TFD.ScoreType type) throws IOException {
+    reset(type);
+    reader.read(file, this);
+    return votes;
+  }
+
+  /**
+   * Scores the malware which is read from the given channel, e.g. the body of an upload
+   * @param channel
+   * @param type
+   * @return scores by family id; the array is reused by the next malware
+   * @throws IOException
+   */
+  public int[] score(ReadableByteChannel channel, TFD.ScoreType type) throws IOException {
+    reset(type);
+    reader.read(channel, this);
+    return votes;
+  }
+
+  /**
+   * Clears the votes and the seen BasicBlocks before the next malware is scored
+   * @param type
+   */
+  private void reset(TFD.ScoreType type) {
+    int countOfFamilies = model.getIndex().countOfFamilies();
+    if (votes.length < countOfFamilies) {
+      votes = new int[countOfFamilies];
+    } else {
+      Arrays.fill(votes, 0);
+    }
+
+    seen.clear();
+    this.type = type;
+  }
+
+  /**
+   * Adds the vote of the given BasicBlock, unless it is already seen or the model does not have it
+   * @param blockId
+   */
+  @Override
+  public void block(int blockId) {
+    if (blockId >= 0 && !seen.get(blockId)) {
+      seen.set(blockId);
+      int best = model.bestFamilyId(blockId, type);
+
+      if (best >= 0) {
+        votes[best]++;
+      }
+    }
+  }
+
+  /**
+   *
+   * @return count of the distinct BasicBlocks of the last file which the model has
+   */
+  public int getCountOfBasicBlocks() {
+    return seen.cardinality();
+  }
+
+  /**
+   *
+   * @return version of the model the files are scored against
+   */
+  public ModelVersion getModel() {
+    return model;
+  }
+}
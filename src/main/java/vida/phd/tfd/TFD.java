@@ -2,9 +2,20 @@ package vida.phd.tfd;
 
 import com.google.common.io.Files;
 import vida.phd.tfd.entity.BasicBlock;
+import vida.phd.tfd.entity.BlockCounts;
+import vida.phd.tfd.entity.BlockKey;
 import vida.phd.tfd.entity.Family;
 import vida.phd.tfd.entity.Malware;
+import vida.phd.tfd.index.BlockDictionary;
+import vida.phd.tfd.index.BlockIndex;
+import vida.phd.tfd.index.Postings;
+import vida.phd.tfd.index.Shard;
+import vida.phd.tfd.io.BlockReader;
+import vida.phd.tfd.io.DistinctBlockReader;
+import vida.phd.tfd.io.Journal;
 import vida.phd.tfd.io.Loader;
+import vida.phd.tfd.io.ParallelLoader;
+import vida.phd.tfd.io.Snapshot;
 
 import java.io.File;
 import java.io.FileFilter;
@@ -15,6 +26,8 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,40 +50,128 @@ public class TFD {
   protected File familiesHome;
   
   /**
-   * HashMap to keep all families
+   * Current version of the model. Queries and classifications pin it; the next version is built aside and replaces it at once.
    */
-  protected volatile HashMap<String, Family> families;
-  
+  private final AtomicReference<ModelVersion> model = new AtomicReference<>(ModelVersion.empty());
+
   /**
-   * Number of threads for initial loading of the families concurrently
+   * Lock of the writers, which build the next version of the model from the current one and publish it
    */
-  protected static final int THREADS = 10;
-  
+  private final Object writeLock = new Object();
+
   /**
-   * The new malware which is about to be classified
+   * Calculates the measures of the families in parallel
    */
-  protected Malware candidateMalware;
-  
+  protected ModelCalculator calculator;
+
   /**
-   * Temporary family that a new malware will be assigned to before classification happens
+   * Number of threads for loading and calculating the families concurrently
    */
-  protected Family candidateFamily;
+  protected int threads;
   
   /**
    * The successfully detected family for the new malware after classification happens
    */
   protected Family detectedFamily;
+
+  /**
+   * Version of the model the new malware is scored against
+   */
+  private ModelVersion candidateModel;
   
   /**
-   * HashMap to keep all families scores for the new malware
+   * Scores of the families for the new malware by family id; it is reused for every new malware
+   */
+  private int[] scores;
+
+  /**
+   * True if the scoring of a malware stops as soon as the remaining BasicBlocks can not change the result
    */
-  private HashMap<String, Integer> scores;
+  private boolean earlyExit;
+
+  /**
+   * Leaders of the scores of the candidate malware
+   */
+  private final VoteLeaders leaders = new VoteLeaders();
+
+  /**
+   * Reader of the distinct BasicBlocks of the new malware files in the dictionary of the model, which reuses its buffers;
+   * null until it is needed
+   */
+  private DistinctBlockReader candidateReader;
   
   /**
-   * Arbitrary name for the temporary family
-   * @see candidateFamily
+   * Arbitrary name for the temporary family of the malware which are read before they are added to their families
+   */
+  static final String CANDIDATE_FAMILY_NAME = "__candidate_family";
+
+  /**
+   * Classified malware which are not added to their detected families yet, with their detected families
+   */
+  private final LinkedHashMap<Malware, Family> classified = new LinkedHashMap<>();
+
+  /**
+   * Classified malware files which were scored while streaming, so they are read again when they are added to their 
+   * families, with their detected families
+   */
+  private final LinkedHashMap<File, Family> classifiedFiles = new LinkedHashMap<>();
+
+  /**
+   * Size of a malware file in bytes from which it is scored while streaming instead of being read first
+   */
+  static final long STREAMING_SIZE = 64L * 1024 * 1024;
+
+  /**
+   * Shard of the BasicBlocks which are kept when the families are loaded; null for the whole model
+   */
+  private Shard shard;
+
+  /**
+   * Scorer of the big malware files; null until it is needed
    */
-  private final String CANDIDATE_FAMILY_NAME = "__candidate_family";
+  private StreamingScorer streamingScorer;
+
+  /**
+   * Size of the journal in bytes after which it is folded into a new snapshot
+   */
+  private static final long COMPACTION_SIZE = 64L * 1024 * 1024;
+
+  /**
+   * Snapshot which the families are saved to or loaded from; null if there is none. Guarded by the writeLock.
+   */
+  private File snapshotFile;
+
+  /**
+   * Journal of the malware which are added to the families after the snapshot; null if there is no snapshot. Guarded by
+   * the writeLock.
+   */
+  private Journal journal;
+
+  /**
+   * Runs the compactions of the journal in the background
+   */
+  private ExecutorService compactor;
+
+  /**
+   * Last compaction; the families are not changed until it is done. Guarded by the writeLock.
+   */
+  private Future<?> compaction;
+
+  /**
+   * Rebuilds the model from the families home in the background
+   */
+  private ExecutorService builder;
+
+  /**
+   * Last rebuild of the model; null if there is none
+   */
+  private Future<?> rebuild;
+
+  /**
+   * Malware which are added to the model while it is rebuilt, so they are added to the rebuilt model too; null if 
+   * the model is not being rebuilt
+   */
+  private List<Malware> addedDuringRebuild;
 
   /**
    * Constructor which takes a Directory as the familiesHome
@@ -78,124 +179,686 @@ public class TFD {
    */
   public TFD(File familiesHome) {
     this.familiesHome = familiesHome;
-    families = new HashMap<>();
+    threads = Runtime.getRuntime().availableProcessors();
+    calculator = new ModelCalculator(threads);
   }
 
   /**
    * Default constructor
    */
   public TFD() {
-    families = new HashMap<>();
+    threads = Runtime.getRuntime().availableProcessors();
+    calculator = new ModelCalculator(threads);
   }
 
   /**
-   * Load all families from the familiesHome
+   * Load all families from the familiesHome. The families which are already loaded are kept.
    * @throws IOException 
    */
   public void loadFamilies() throws IOException {
-    int countOfBB = 0;
-    int countOfMalwares = 0;
-    int countOfFamilies = 0;
+    awaitRebuild();
+
+    synchronized (writeLock) {
+      closeJournal();
+      ModelVersion current = model.get();
+      BlockDictionary dictionary = current.getDictionary();
+      HashMap<String, Family> families = new HashMap<>();
+      int countOfBB = 0;
+      int countOfMalwares = 0;
+      int countOfFamilies = 0;
+
+      if (familiesHome.exists() && familiesHome.isDirectory()) {
+        File[] directories = familiesHome.listFiles(new FileFilter() {
+
+          @Override
+          public boolean accept(File file) {
+            return file.isDirectory();
+          }
+        });
+
+        // the families are indexed again with the new ones and may get other ids, so they are copied
+        for (Family family : current.getFamilies().values()) {
+          families.put(family.getName(), family.copy());
+        }
+
+        List<File> newDirectories = new ArrayList<>();
+        for (File directory : directories) {
+          if (families.containsKey(directory.getName())) {
+            System.out.println("Family " + directory.getName() + " already exists. Not loaded again!");
+          } else {
+            newDirectories.add(directory);
+          }
+        }
+
+        ParallelLoader loader = new ParallelLoader(dictionary, threads, shard);
+        List<Family> loaded = loader.load(newDirectories.toArray(new File[newDirectories.size()]));
+
+        for (Family family : loaded) {
+          families.put(family.getName(), family);
+          System.out.println("Family loaded: " + family.getName() + " " + family.countOfBasicBlocks());
+          countOfBB += family.countOfBasicBlocks();
+          countOfFamilies++;
+          countOfMalwares += family.getMalwares().size();
+        }
+      } else {
+        throw new IOException(MessageFormat.format("{0} does not exist or is not a directory!", familiesHome.getAbsolutePath()));
+      }
+
+      publish(families, dictionary, buildIndex(families, dictionary), null, null, null, false, false);
+      System.out.println(MessageFormat.format("{0} familes, {1} malwares and {2} basic blocks loaded.", countOfFamilies, countOfMalwares, countOfBB + ""));
+    }
+
+    showStatus(false);
+  }
+
+  /**
+   * Saves the loaded families, their dictionary and their calculated measures to the given snapshot file.
+   * <br/>The malware which are added afterwards are kept in the journal of the snapshot.
+   * @param file
+   * @throws IOException 
+   */
+  public void saveSnapshot(File file) throws IOException {
+    if (shard != null) {
+      throw new IOException("Shard " + shard + " of the model can not be saved as a snapshot.");
+    }
+
+    synchronized (writeLock) {
+      awaitCompaction();
+      ModelVersion current = model.get();
+      snapshotOf(current).write(file);
+      openJournal(file).reset(current.getDictionary().size());
+    }
+  }
+
+  /**
+   * 
+   * @param version
+   * @return snapshot of the given version of the model
+   */
+  private Snapshot snapshotOf(ModelVersion version) {
+    return new Snapshot(familiesHome, version.getDictionary(), version.getIndex().getFamilies(), version.isTfdCalculated(), version.isFcCalculated());
+  }
+
+  /**
+   * Replaces the loaded families with the families of the given snapshot file, and the malware of its journal.
+   * <br/>The measures which are saved in the snapshot are not calculated again.
+   * @param file
+   * @throws IOException 
+   */
+  public void loadSnapshot(File file) throws IOException {
+    if (shard != null) {
+      throw new IOException("Shard " + shard + " of the model can not be loaded from a snapshot.");
+    }
+
+    awaitRebuild();
+
+    synchronized (writeLock) {
+      awaitCompaction();
+      Snapshot snapshot = Snapshot.read(file);
+
+      if (snapshot.getFamiliesHome() != null) {
+        familiesHome = snapshot.getFamiliesHome();
+      }
+
+      BlockDictionary dictionary = snapshot.getDictionary();
+      HashMap<String, Family> families = new HashMap<>();
+      for (Family family : snapshot.getFamilies()) {
+        families.put(family.getName(), family);
+      }
+
+      BlockIndex index = buildIndex(families, dictionary);
+      boolean tfdCalculated = snapshot.isTfdCalculated();
+      boolean fcCalculated = snapshot.isFcCalculated();
+      ModelVersion loaded = new ModelVersion(model.get().getNumber() + 1, families, dictionary, index, null,
+              tfdCalculated ? calculator.calculateWinners(index, false) : null, fcCalculated ? calculator.calculateWinners(index, true) : null,
+              tfdCalculated, fcCalculated);
+
+      System.out.println(MessageFormat.format("{0} familes and {1} distinguished basic blocks loaded from the snapshot.", families.size(), dictionary.size() + ""));
+      model.set(replayJournal(loaded, openJournal(file)));
+    }
+
+    showStatus(false);
+  }
+
+  /**
+   * Adds the malware of the given journal to the families of the given version, which is not published yet
+   * @param loaded
+   * @param journal
+   * @return version with the malware of the journal
+   * @throws IOException 
+   */
+  private ModelVersion replayJournal(ModelVersion loaded, Journal journal) throws IOException {
+    final HashMap<String, Family> families = loaded.getFamilies();
+    final List<Malware> added = new ArrayList<>();
+
+    int count = journal.replay(loaded.getDictionary(), new Journal.Handler() {
+      @Override
+      public void malware(String familyName, String malwareName, BlockCounts blocks) {
+        Family family = families.get(familyName);
+
+        if (family == null) {
+          System.out.println("Family " + familyName + " of the journal not found. Malware " + malwareName + " not added!");
+        } else {
+          Malware malware = new Malware(malwareName, family, blocks);
+
+          if (addMalware(family, malware)) {
+            added.add(malware);
+          }
+        }
+      }
+    });
+
+    if (count > 0) {
+      System.out.println(MessageFormat.format("{0} malware replayed from the journal.", count));
+      return refresh(loaded, families, added, calculator);
+    }
+
+    return loaded;
+  }
 
-    if (familiesHome.exists() && familiesHome.isDirectory()) {
-      File[] directories = familiesHome.listFiles(new FileFilter() {
+  /**
+   * Opens the journal of the given snapshot file instead of the current journal
+   * @param snapshot
+   * @return journal
+   * @throws IOException 
+   */
+  private Journal openJournal(File snapshot) throws IOException {
+    closeJournal();
+    journal = new Journal(Journal.of(snapshot));
+    snapshotFile = snapshot;
+    return journal;
+  }
 
+  /**
+   * Closes the current journal, if there is any
+   */
+  private void closeJournal() {
+    awaitCompaction();
+
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException ex) {
+        Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+      }
+      journal = null;
+      snapshotFile = null;
+    }
+  }
+
+  /**
+   * Folds the journal into a new snapshot in the background, if the journal is big enough.
+   * <br/>No malware is added to the journal until the compaction is done. It must be called with the writeLock held, so
+   * every writer which awaits the compaction sees it.
+   */
+  private void compactIfNeeded() {
+    try {
+      if (journal == null || journal.size() < COMPACTION_SIZE) {
+        return;
+      }
+    } catch (IOException ex) {
+      Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+      return;
+    }
+
+    if (compactor == null) {
+      compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "journal-compactor");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    final ModelVersion current = model.get();
+    final Snapshot snapshot = snapshotOf(current);
+    final int countOfKeys = current.getDictionary().size();
+    final File file = snapshotFile;
+    final Journal compacted = journal;
+
+    compaction = compactor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          snapshot.write(file);
+          compacted.reset(countOfKeys);
+        } catch (IOException ex) {
+          Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, "Compaction of the journal failed: " + ex.getMessage(), ex);
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits until the last compaction of the journal is done
+   */
+  private void awaitCompaction() {
+    if (compaction != null) {
+      try {
+        compaction.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException ex) {
+        Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+      }
+      compaction = null;
+    }
+  }
+
+  /**
+   * Loads all families from the familiesHome again and calculates their measures in the background, while the current 
+   * version of the model keeps answering queries and classifications. The rebuilt model replaces the current one at once,
+   * with the malware which are added to the current one in the meantime.
+   * <br/>If there is a journal, the rebuilt model is saved to its snapshot before it is published.
+   * @return false if the model is already being rebuilt
+   */
+  public boolean rebuild() {
+    synchronized (writeLock) {
+      if (addedDuringRebuild != null) {
+        return false;
+      }
+
+      if (familiesHome == null || !familiesHome.isDirectory()) {
+        System.out.println("Families home is not a directory: " + familiesHome);
+        return false;
+      }
+
+      if (builder == null) {
+        builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "model-builder");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+
+      addedDuringRebuild = new ArrayList<>();
+      final File home = familiesHome;
+      final boolean fc = model.get().isFcCalculated();
+
+      rebuild = builder.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            rebuild(home, fc);
+          } catch (Exception ex) {
+            Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, "Rebuild of the model failed: " + ex.getMessage(), ex);
+          } finally {
+            synchronized (writeLock) {
+              addedDuringRebuild = null;
+            }
+          }
+        }
+      });
+
+      System.out.println("Rebuilding the model from " + home.getAbsolutePath() + " in the background; version " 
+              + model.get().getNumber() + " is used until it is done.");
+      return true;
+    }
+  }
+
+  /**
+   * Builds a new model from the given families home and publishes it
+   * @param home
+   * @param fc true to calculate FC too
+   * @throws IOException 
+   */
+  private void rebuild(File home, boolean fc) throws IOException {
+    final long startTime = System.nanoTime();
+    ModelCalculator rebuildCalculator = new ModelCalculator(threads);
+
+    try {
+      File[] directories = home.listFiles(new FileFilter() {
         @Override
         public boolean accept(File file) {
           return file.isDirectory();
         }
       });
 
-      ExecutorService executor = Executors.newFixedThreadPool(THREADS);
-      List<Future<Family>> futures = new ArrayList<>();
+      BlockDictionary dictionary = new BlockDictionary();
+      HashMap<String, Family> families = new HashMap<>();
+      for (Family family : new ParallelLoader(dictionary, threads, shard).load(directories)) {
+        families.put(family.getName(), family);
+      }
 
-      for (File directory : directories) {
-        Loader loader = new Loader(directory, directory.getName());
-        Future<Family> submit = executor.submit(loader);
-        futures.add(submit);
+      ModelVersion rebuilt = new ModelVersion(0, families, dictionary, buildIndex(families, dictionary), null, null, null, false, false);
+      rebuilt = calculate(rebuilt, ScoreType.TFD, rebuildCalculator, false);
+      if (fc) {
+        rebuilt = calculate(rebuilt, ScoreType.FAM_CLASSIFIER, rebuildCalculator, false);
       }
 
-      executor.shutdown();
+      synchronized (writeLock) {
+        List<Malware> merged = new ArrayList<>();
 
-      for (Future<Family> future : futures) {
-        try {
-          Family family = future.get();
-          //removeDuplications(family);
-          if (families.containsKey(family.getName())) {
-            System.out.println("Family " + family.getName() + " already exists. Not loaded again!");
-          } else {
-            families.put(family.getName(), family);
-            System.out.println("Family loaded: " + family.getName() + " " + family.countOfBasicBlocks());
-            countOfBB += family.countOfBasicBlocks();
-            countOfFamilies++;
-            countOfMalwares += family.getMalwares().size();
+        for (Malware added : addedDuringRebuild) {
+          Family family = families.get(added.getFamily().getName());
+
+          if (family != null && !family.getMalwares().containsKey(added.getName())) {
+            BlockDictionary addedDictionary = added.getFamily().getDictionary();
+            BlockCounts blocks = added.getBasicBlocks();
+            Malware malware = new Malware(added.getName(), family);
+
+            for (int i = 0; i < blocks.size(); i++) {
+              malware.addBasicBlock(dictionary.intern(addedDictionary.getKey(blocks.getId(i))), blocks.getCount(i));
+            }
+            malware.freeze();
+
+            if (addMalware(family, malware)) {
+              merged.add(malware);
+            }
           }
-        } catch (InterruptedException | ExecutionException ex) {
-          Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
         }
+
+        if (!merged.isEmpty()) {
+          rebuilt = refresh(rebuilt, families, merged, rebuildCalculator);
+        }
+
+        if (journal != null) {
+          awaitCompaction();
+          snapshotOf(rebuilt).write(snapshotFile);
+          journal.reset(dictionary.size());
+        }
+
+        rebuilt = publish(families, dictionary, rebuilt.getIndex(), rebuilt.getTermFrequencyRatioSums(), rebuilt.getTfdWinners(), rebuilt.getFcWinners(),
+                rebuilt.isTfdCalculated(), rebuilt.isFcCalculated());
       }
-    } else {
-      throw new IOException(MessageFormat.format("{0} does not exist or is not a directory!", familiesHome.getAbsolutePath()));
+
+      System.out.println(MessageFormat.format("Model version {0} rebuilt from {1} families in {2} ms.", rebuilt.getNumber() + "", families.size(), 
+              (System.nanoTime() - startTime) / 1000000));
+    } finally {
+      rebuildCalculator.shutdown();
     }
+  }
 
-    System.out.println(MessageFormat.format("{0} familes, {1} malwares and {2} basic blocks loaded.", countOfFamilies, countOfMalwares, countOfBB + ""));
-    showStatus(false);
+  /**
+   * Waits until the last rebuild of the model is done
+   */
+  public void awaitRebuild() {
+    Future<?> last;
+    synchronized (writeLock) {
+      last = rebuild;
+    }
+
+    if (last != null) {
+      try {
+        last.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException ex) {
+        Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+      }
+    }
   }
 
   /**
-   * Calculates TermFrequencyRatio for all BasicBlocks of all Malware
+   * Waits for the rebuild of the model and the compaction of the journal and closes the journal
    */
-  public void calculateTermFrequencyRatio() {
-    //System.out.println("Calculating term frequency ratio...");
-    Iterator<Map.Entry<String, Family>> iterator = families.entrySet().iterator();
-    while (iterator.hasNext()) {
-      Map.Entry<String, Family> pair = iterator.next();
-      Family family = pair.getValue();
+  public void close() {
+    awaitRebuild();
+
+    synchronized (writeLock) {
+      closeJournal();
+    }
 
-      HashMap<String, BasicBlock> basicBlocks = family.getBasicBlocks();
-      Iterator<Map.Entry<String, BasicBlock>> it = basicBlocks.entrySet().iterator();
+    if (compactor != null) {
+      compactor.shutdown();
+    }
 
-      int totalBasicBlocks = family.countOfBasicBlocks();
+    if (builder != null) {
+      builder.shutdown();
+    }
+  }
 
-      while (it.hasNext()) {
-        Map.Entry<String, BasicBlock> bbPair = it.next();
-        BasicBlock basicBlock = bbPair.getValue();
+  /**
+   * Assigns ids to the given families in the order of their names and builds the inverted index of their BasicBlocks
+   * @param families
+   * @param dictionary
+   * @return index
+   */
+  private static BlockIndex buildIndex(HashMap<String, Family> families, BlockDictionary dictionary) {
+    List<String> names = new ArrayList<>(families.keySet());
+    Collections.sort(names);
+
+    Family[] familiesById = new Family[names.size()];
+    for (int i = 0; i < familiesById.length; i++) {
+      familiesById[i] = families.get(names.get(i));
+      familiesById[i].setId(i);
+    }
 
-        int count = basicBlock.getCount();
-        double tfr = (double) count / (double) totalBasicBlocks;
+    return BlockIndex.build(familiesById, dictionary);
+  }
 
-        if (tfr == 0) {
-          System.out.println("!");
-        }
+  /**
+   * Publishes the next version of the model with the given state
+   * @param families
+   * @param dictionary
+   * @param index
+   * @param termFrequencyRatioSums
+   * @param tfdWinners
+   * @param fcWinners
+   * @param tfdCalculated
+   * @param fcCalculated
+   * @return published version
+   */
+  private ModelVersion publish(HashMap<String, Family> families, BlockDictionary dictionary, BlockIndex index, double[] termFrequencyRatioSums,
+          int[] tfdWinners, int[] fcWinners, boolean tfdCalculated, boolean fcCalculated) {
+    ModelVersion result = new ModelVersion(model.get().getNumber() + 1, families, dictionary, index, termFrequencyRatioSums, 
+            tfdWinners, fcWinners, tfdCalculated, fcCalculated);
+    model.set(result);
+    return result;
+  }
+
+  /**
+   * Calculates the measures which are needed by the given ScoreType, unless they are already calculated.
+   * <br/>They are calculated on copies of the families, which are published as the next version of the model; the copies
+   * share the metric columns which are not calculated again with the current version. The candidate malware is never added to the families, so the model stays the same between classifications.
+   * @param type
+   * @return true if anything was calculated
+   */
+  public boolean calculateModel(ScoreType type) {
+    if (isCalculated(model.get(), type)) {
+      return false;
+    }
 
-        basicBlock.setTermFrequencyRatio(tfr);
-        //System.out.println("bb: " + basicBlock.getMalwareName() + " " + basicBlock.getCode() + " : " + tfr);
+    synchronized (writeLock) {
+      ModelVersion current = model.get();
+
+      if (isCalculated(current, type)) {
+        return false;
       }
+
+      calculator.clearTimings();
+      ModelVersion calculated = calculate(current, type, calculator, true);
+      publish(calculated.getFamilies(), calculated.getDictionary(), calculated.getIndex(), calculated.getTermFrequencyRatioSums(), calculated.getTfdWinners(),
+              calculated.getFcWinners(), calculated.isTfdCalculated(), calculated.isFcCalculated());
+      return true;
     }
   }
 
   /**
-   * Calculates DistributedTermFrequency of all BasicBlocks in all Malware
+   * 
+   * @param version
+   * @param type
+   * @return true if the measures which are needed by the given ScoreType are calculated in the given version
    */
-  public void calculateDistributionTermFrequency() {
-    //System.out.println("Calculating distribution term frequency...");
-    Iterator<Map.Entry<String, Family>> iterator = families.entrySet().iterator();
-    while (iterator.hasNext()) {
-      Map.Entry<String, Family> pair = iterator.next();
-      Family family = pair.getValue();
+  private static boolean isCalculated(ModelVersion version, ScoreType type) {
+    return version.isTfdCalculated() && (type != ScoreType.FAM_CLASSIFIER || version.isFcCalculated());
+  }
 
-      HashMap<String, BasicBlock> basicBlocks = family.getBasicBlocks();
-      Iterator<Map.Entry<String, BasicBlock>> it = basicBlocks.entrySet().iterator();
+  /**
+   * Calculates the measures which are needed by the given ScoreType and not calculated in the given version yet
+   * @param base
+   * @param type
+   * @param calculator
+   * @param copy true if the base version is published, so the measures are written to copies of its families
+   * @return version with the measures; it is not published and has the number of the base version
+   */
+  private static ModelVersion calculate(ModelVersion base, ScoreType type, ModelCalculator calculator, boolean copy) {
+    BlockDictionary dictionary = base.getDictionary();
+    HashMap<String, Family> families = base.getFamilies();
+    BlockIndex index = base.getIndex();
+    double[] sums = base.getTermFrequencyRatioSums();
+    int[] tfdWinners = base.getTfdWinners();
+    int[] fcWinners = base.getFcWinners();
+    boolean fcCalculated = base.isFcCalculated();
+    boolean fc = type == ScoreType.FAM_CLASSIFIER && !fcCalculated;
+
+    if (copy) {
+      Family[] copies = new Family[index.countOfFamilies()];
+      families = new HashMap<>();
+
+      for (Family family : index.getFamilies()) {
+        copies[family.getId()] = family.copy();
+        families.put(family.getName(), copies[family.getId()]);
+      }
+      index = index.withFamilies(copies);
+    }
+
+    for (Family family : index.getFamilies()) {
+      if (!base.isTfdCalculated()) {
+        family.ownMetrics(Family.Metric.TFR, Family.Metric.TFD);
+      }
+      if (fc) {
+        family.ownMetrics(Family.Metric.MDF, Family.Metric.FC);
+      }
+    }
 
-      while (it.hasNext()) {
-        Map.Entry<String, BasicBlock> bbPair = it.next();
-        BasicBlock basicBlock = bbPair.getValue();
+    if (!base.isTfdCalculated()) {
+      calculator.calculateTermFrequencyRatio(index.getFamilies());
+      sums = calculator.calculateTermFrequencyRatioSums(index);
+      calculator.calculateDistributionTermFrequency(index.getFamilies(), sums);
+      tfdWinners = calculator.calculateWinners(index, false);
+    }
 
-        double termFrequencyRatio = basicBlock.getTermFrequencyRatio();
-        double sumOfTermFrequencyRatio = sumOfTermFrequencyRatio(basicBlock.getCode(), family);
-        double distributionTermFrequency = termFrequencyRatio - sumOfTermFrequencyRatio;
+    if (fc) {
+      calculator.calculateMDFs(index);
+      calculator.calculateFCs(index.getFamilies());
+      fcWinners = calculator.calculateWinners(index, true);
+      fcCalculated = true;
+    }
 
-        basicBlock.setDistributionTermFrequency(distributionTermFrequency);
+    return new ModelVersion(base.getNumber(), families, dictionary, index, sums, tfdWinners, fcWinners, true, fcCalculated);
+  }
+
+  /**
+   * Patches the index and calculates the measures of the families which the given malware are added to. Only the Postings 
+   * and the measures of the BasicBlocks of those families change.
+   * @param base version which the families are copied from, or the version of the families if it is not published yet
+   * @param families of the base version, and copies of the families which malware are added to if the base version is published;
+   * or the families of the base version if it is not published yet
+   * @param added malware which are added to their families
+   * @param calculator
+   * @return version with the changed families; it is not published and has the number of the base version
+   */
+  private static ModelVersion refresh(ModelVersion base, HashMap<String, Family> families, List<Malware> added, ModelCalculator calculator) {
+    Set<Family> changed = familiesOf(added);
+    Family[] affected = changed.toArray(new Family[changed.size()]);
+    for (Family family : affected) {
+      family.ownMetrics(Family.Metric.values());
+    }
+
+    BlockDictionary dictionary = base.getDictionary();
+    boolean fcCalculated = base.isFcCalculated();
+    calculator.clearTimings();
+
+    if (base.isTfdCalculated() && families != base.getFamilies()) {
+      copyTouchedFamilies(base.getIndex(), families, affected, fcCalculated);
+    }
+
+    Family[] familiesById = new Family[base.getIndex().countOfFamilies()];
+    for (int id = 0; id < familiesById.length; id++) {
+      familiesById[id] = families.get(base.getIndex().getFamily(id).getName());
+    }
+
+    BlockIndex index = base.getIndex().update(familiesById, affected, added);
+    if (!base.isTfdCalculated()) {
+      return new ModelVersion(base.getNumber(), families, dictionary, index, null, null, null, false, false);
+    }
+
+    double[] sums = base.getTermFrequencyRatioSums();
+    calculator.calculateTermFrequencyRatio(affected);
+
+    if (sums == null) {
+      sums = calculator.calculateTermFrequencyRatioSums(index);
+    } else {
+      sums = calculator.updateTermFrequencyRatioSums(index, affected, Arrays.copyOf(sums, sums.length));
+    }
+
+    if (fcCalculated) {
+      calculator.calculateMDFs(index, affected);
+    }
+
+    calculator.updateDistributionTermFrequency(index, affected, sums, fcCalculated);
+    int[] tfdWinners = calculator.updateWinners(index, affected, Arrays.copyOf(base.getTfdWinners(), base.getTfdWinners().length), false);
+    int[] fcWinners = null;
+
+    if (fcCalculated) {
+      fcWinners = calculator.updateWinners(index, affected, Arrays.copyOf(base.getFcWinners(), base.getFcWinners().length), true);
+    }
+
+    return new ModelVersion(base.getNumber(), families, dictionary, index, sums, tfdWinners, fcWinners, true, fcCalculated);
+  }
+
+  /**
+   * 
+   * @param malwares
+   * @return families of the given malware, in the order of the malware
+   */
+  private static Set<Family> familiesOf(List<Malware> malwares) {
+    Set<Family> result = new LinkedHashSet<>();
+
+    for (Malware malware : malwares) {
+      result.add(malware.getFamily());
+    }
+
+    return result;
+  }
+
+  /**
+   * Copies the families of the given index which have BasicBlocks of the changed families, with their columns of TFD, 
+   * and FC, as the measures of those BasicBlocks are written in every family which has them. The other families, and 
+   * the other columns, are shared with the version of the index.
+   * @param index of the version the families are copied from
+   * @param families of that version, and copies of the changed families
+   * @param changed families which malware are added to
+   * @param fcs true if FC is written too
+   */
+  private static void copyTouchedFamilies(BlockIndex index, HashMap<String, Family> families, Family[] changed, boolean fcs) {
+    boolean[] touched = new boolean[index.countOfFamilies()];
+
+    for (Family family : changed) {
+      BlockCounts blocks = family.getBlockCounts();
+
+      for (int i = 0; i < blocks.size(); i++) {
+        Postings postings = index.get(blocks.getId(i));
+
+        if (postings != null) {
+          for (int j = 0; j < postings.size(); j++) {
+            touched[postings.getFamilyId(j)] = true;
+          }
+        }
+      }
+    }
+
+    for (int id = 0; id < touched.length; id++) {
+      Family family = families.get(index.getFamily(id).getName());
+
+      if (!touched[id] || family == null) {
+        continue;
+      }
+
+      if (family == index.getFamily(id)) {
+        family = family.copy();
+        families.put(family.getName(), family);
+      }
+
+      family.ownMetrics(Family.Metric.TFD);
+      if (fcs) {
+        family.ownMetrics(Family.Metric.FC);
       }
     }
   }
@@ -207,13 +870,12 @@ public class TFD {
    */
   public List<Family> findFamiliesByBB(String code) {
     List<Family> result = new ArrayList<>();
+    BlockIndex index = model.get().getIndex();
+    Postings postings = index.get(code);
 
-    Iterator<Map.Entry<String, Family>> it = families.entrySet().iterator();
-
-    while (it.hasNext()) {
-      Family family = it.next().getValue();
-      if (family.getBasicBlocks().containsKey(code)) {
-        result.add(family);
+    if (postings != null) {
+      for (int i = 0; i < postings.size(); i++) {
+        result.add(index.getFamily(postings.getFamilyId(i)));
       }
     }
 
@@ -221,28 +883,47 @@ public class TFD {
   }
 
   /**
-   * Find the top BasicBlocks in the given family. 
+   * Find the top BasicBlocks in the given family. Only the top BasicBlocks are selected, unless the family already 
+   * has a cached ranking.
    * @param familyName
    * @param count
    * @return
    * @throws Exception 
    */
   public List<BasicBlock> topByFamily(String familyName, int count) throws Exception {
-    List<BasicBlock> result = new ArrayList<>(count);
+    return topByFamily(model.get(), familyName, count);
+  }
 
-    Family family = families.get(familyName);
+  /**
+   * Find the top BasicBlocks in the given family of the given version of the model
+   * @param version
+   * @param familyName
+   * @param count
+   * @return
+   * @throws Exception if the version does not have the family
+   */
+  public static List<BasicBlock> topByFamily(ModelVersion version, String familyName, int count) throws Exception {
+    Family family = version.getFamilies().get(familyName);
 
     if (family != null) {
-      HashMap<String, BasicBlock> basicBlocks = family.getBasicBlocks();
-      List<BasicBlock> sorted = sortByValue(basicBlocks);
-
-      for (int i = sorted.size() - 1; i > sorted.size() - (count + 1); i--) {
-        result.add(sorted.get(i));
-      }
-
+      return basicBlocks(family, family.topByDistributionTermFrequency(count));
     } else {
       throw new Exception("Family " + familyName + " not found.");
     }
+  }
+
+  /**
+   * 
+   * @param family
+   * @param positions
+   * @return BasicBlocks of the given family at the given positions, in their order
+   */
+  private static List<BasicBlock> basicBlocks(Family family, int[] positions) {
+    List<BasicBlock> result = new ArrayList<>(positions.length);
+
+    for (int position : positions) {
+      result.add(family.getBasicBlock(position));
+    }
 
     return result;
   }
@@ -254,34 +935,29 @@ public class TFD {
    * @return 
    */
   protected double sumOfTermFrequencyRatio(String bbcode, Family exclude) {
-    double result = 0;
-    List<Family> famList = findFamiliesByBB(bbcode);
+    ModelVersion current = model.get();
+    double[] termFrequencyRatioSums = current.getTermFrequencyRatioSums();
+    if (termFrequencyRatioSums == null) {
+      termFrequencyRatioSums = calculator.calculateTermFrequencyRatioSums(current.getIndex());
+    }
 
-    for (Family family : famList) {
-      if (!family.equals(exclude)) {
-        double termFrequencyRatio = family.getBasicBlocks().get(bbcode).getTermFrequencyRatio();
-        result += termFrequencyRatio;
-      }
+    int blockId = current.getDictionary().find(BlockKey.of(bbcode));
+    if (blockId < 0 || blockId >= termFrequencyRatioSums.length) {
+      return 0;
     }
 
-    return result;
+    double sum = termFrequencyRatioSums[blockId];
+    BasicBlock excluded = exclude == null ? null : exclude.findById(blockId);
+    return excluded == null ? sum : sum - excluded.getTermFrequencyRatio();
   }
 
   /**
-   * Sort the given HashMap of BasicBlocks based on TFD
-   * @param map
+   * Sort the given BasicBlocks based on TFD
+   * @param basicBlocks
    * @return 
    */
-  public static List<BasicBlock> sortByValue(Map<String, BasicBlock> map) {
-    List<BasicBlock> list = new LinkedList<>();
-
-    Iterator<Map.Entry<String, BasicBlock>> it = map.entrySet().iterator();
-
-    while (it.hasNext()) {
-      BasicBlock bb = it.next().getValue();
-      list.add(bb);
-    }
-
+  public static List<BasicBlock> sortByValue(Collection<BasicBlock> basicBlocks) {
+    List<BasicBlock> list = new ArrayList<>(basicBlocks);
     Collections.sort(list);
     return list;
   }
@@ -302,12 +978,76 @@ public class TFD {
     this.familiesHome = familiesHome;
   }
 
+  /**
+   * Keeps only the BasicBlocks of the given shard when the families are loaded; the BasicBlocks of the other shards
+   * are only counted in the totals of their families. It must be set before the families are loaded.
+   * <br/>A shard is served to a {@link vida.phd.tfd.shard.ShardCoordinator} by a {@link vida.phd.tfd.shard.ShardWorker}; 
+   * it can not be saved as a snapshot.
+   * @param shard or null for the whole model
+   */
+  public void setShard(Shard shard) {
+    this.shard = shard;
+  }
+
+  /**
+   * 
+   * @return shard of the BasicBlocks which are kept or null for the whole model
+   */
+  public Shard getShard() {
+    return shard;
+  }
+
+  /**
+   * Sets the count of threads which load the families and calculate their measures
+   * @param parallelism 
+   */
+  public void setParallelism(int parallelism) {
+    threads = parallelism;
+
+    if (parallelism != calculator.getParallelism()) {
+      calculator.shutdown();
+      calculator = new ModelCalculator(parallelism);
+    }
+  }
+
+  /**
+   * 
+   * @return count of threads which load the families and calculate their measures
+   */
+  public int getParallelism() {
+    return threads;
+  }
+
+  /**
+   * 
+   * @return calculator of the measures of the families
+   */
+  public ModelCalculator getCalculator() {
+    return calculator;
+  }
+
   /**
    * 
-   * @return families
+   * @return current version of the model; it is never changed, so it may be read while the next version is built
+   */
+  public ModelVersion getModel() {
+    return model.get();
+  }
+
+  /**
+   * 
+   * @return dictionary of the BasicBlocks of all families of the current version of the model
+   */
+  public BlockDictionary getDictionary() {
+    return model.get().getDictionary();
+  }
+
+  /**
+   * 
+   * @return families of the current version of the model; must not be changed
    */
   public HashMap<String, Family> getFamilies() {
-    return families;
+    return model.get().getFamilies();
   }
 
   /**
@@ -316,19 +1056,9 @@ public class TFD {
    * @return 
    */
   public BasicBlock getBasicBlockByCode(String code) {
-    BasicBlock result = null;
-    Iterator<Map.Entry<String, Family>> it = families.entrySet().iterator();
-
-    while (it.hasNext()) {
-      Family family = it.next().getValue();
-      result = family.getBasicBlocks().get(code);
-
-      if (result != null) {
-        break;
-      }
-    }
-
-    return result;
+    BlockIndex index = model.get().getIndex();
+    Postings postings = index.get(code);
+    return postings == null ? null : index.getBasicBlock(postings, 0);
   }
 
   /**
@@ -339,21 +1069,16 @@ public class TFD {
     int countOfBBs = 0;
     int countOfMalwares = 0;
     int countOfDistBBs = 0;
+    ModelVersion current = model.get();
+    HashMap<String, Family> families = current.getFamilies();
 
     Iterator<Map.Entry<String, Family>> it = families.entrySet().iterator();
     while (it.hasNext()) {
       Map.Entry<String, Family> next = it.next();
-      Family family = next.getValue();
-
-      Iterator<Map.Entry<String, BasicBlock>> it2 = family.getBasicBlocks().entrySet().iterator();
-
-      while (it2.hasNext()) {
-        Map.Entry<String, BasicBlock> next2 = it2.next();
-        BasicBlock bb = next2.getValue();
-        countOfBBs += bb.getCount();
-        countOfDistBBs++;
-      }
+      Family family = next.getValue();
 
+      countOfBBs += family.countOfBasicBlocks();
+      countOfDistBBs += family.countOfDistinctBasicBlocks();
       countOfMalwares += family.getMalwares().size();
     }
 
@@ -362,31 +1087,33 @@ public class TFD {
     System.out.println("Total count of malwares: " + countOfMalwares);
     System.out.println("Total count of basic blocks: " + countOfBBs);
     System.out.println("Total count of distinguished basic blocks: " + countOfDistBBs);
+    System.out.println("Model version: " + current.getNumber() + (isRebuilding() ? " (rebuilding in the background)" : ""));
     System.out.println("");
   }
 
+  /**
+   * 
+   * @return true while the model is rebuilt in the background
+   */
+  public boolean isRebuilding() {
+    synchronized (writeLock) {
+      return addedDuringRebuild != null;
+    }
+  }
+
   /**
    * Find all malware which contain the given BasicBlock
    * @param code
    * @return 
    */
   public Set<Malware> findMalwaresByBBCode(final String code) {
-    Set<Malware> malwares = new HashSet<>();
-
-    Iterator<Map.Entry<String, Family>> it = families.entrySet().iterator();
-
-    while (it.hasNext()) {
-      Map.Entry<String, Family> nextF = it.next();
-      Family family = nextF.getValue();
-
-      Iterator<Map.Entry<String, Malware>> itM = family.getMalwares().entrySet().iterator();
-      while (itM.hasNext()) {
-        Map.Entry<String, Malware> nextM = itM.next();
-        Malware malware = nextM.getValue();
+    Set<Malware> malwares = new LinkedHashSet<>();
+    BlockIndex index = model.get().getIndex();
+    Postings postings = index.get(code);
 
-        if (malware.getBasicBlocks().containsKey(code)) {
-          malwares.add(malware);
-        }
+    if (postings != null) {
+      for (int i = 0; i < postings.countOfMalwares(); i++) {
+        malwares.add(index.getMalware(postings.getMalwareId(i)));
       }
     }
 
@@ -394,29 +1121,19 @@ public class TFD {
   }
 
   /**
-   * Top BasicBlock (based on TFD) in the given Family.
+   * Top BasicBlock (based on TFD) in the given Family. The ranking of the family is cached until its metrics change.
    * @param familyName
    * @return
    * @throws Exception 
    */
   public List<BasicBlock> topByFamily(String familyName) throws Exception {
-    List<BasicBlock> result = new ArrayList<>();
-
-    Family family = families.get(familyName);
+    Family family = model.get().getFamilies().get(familyName);
 
     if (family != null) {
-      HashMap<String, BasicBlock> basicBlocks = family.getBasicBlocks();
-      List<BasicBlock> sorted = sortByValue(basicBlocks);
-
-      for (int i = sorted.size() - 1; i >= 0; i--) {
-        result.add(sorted.get(i));
-      }
-
+      return basicBlocks(family, family.rankByDistributionTermFrequency());
     } else {
       throw new Exception("Family " + familyName + " not found.");
     }
-
-    return result;
   }
 
   /**
@@ -425,16 +1142,16 @@ public class TFD {
    * @return 
    */
   public List<FamilyBasicBlock> allOccurencesByHash(String code) {
-    List<FamilyBasicBlock> result = new ArrayList<>();
-
-    List<Family> families = findFamiliesByBB(code);
+    return allOccurencesByHash(BlockKey.of(code));
+  }
 
-    for (Family family : families) {
-      BasicBlock bb = family.getBasicBlocks().get(code);
-      if (bb != null) {
-        result.add(new FamilyBasicBlock(family, bb));
-      }
-    }
+  /**
+   * Find all FamilyBasicBlock occurrences by the given BasicBlock key sorted by TermFrequencyDistribution
+   * @param key
+   * @return 
+   */
+  public List<FamilyBasicBlock> allOccurencesByHash(BlockKey key) {
+    List<FamilyBasicBlock> result = occurencesByHash(key);
 
     Collections.sort(result);
     Collections.reverse(result);
@@ -448,16 +1165,16 @@ public class TFD {
    * @return 
    */
   public List<FamilyBasicBlock> allOccurancesByHashSortByFC(String code) {
-    List<FamilyBasicBlock> result = new ArrayList<>();
-
-    List<Family> families = findFamiliesByBB(code);
+    return allOccurancesByHashSortByFC(BlockKey.of(code));
+  }
 
-    for (Family family : families) {
-      BasicBlock bb = family.getBasicBlocks().get(code);
-      if (bb != null) {
-        result.add(new FamilyBasicBlock(family, bb));
-      }
-    }
+  /**
+   * Find all FamilyBasicBlock occurrences by the given BasicBlock key sorted by FamilyClassifier
+   * @param key
+   * @return 
+   */
+  public List<FamilyBasicBlock> allOccurancesByHashSortByFC(BlockKey key) {
+    List<FamilyBasicBlock> result = occurencesByHash(key);
 
     Collections.sort(result, new Comparator<FamilyBasicBlock>() {
       @Override
@@ -477,6 +1194,27 @@ public class TFD {
     return result;
   }
 
+  /**
+   * Find all FamilyBasicBlock occurrences by the given BasicBlock key in the order of family ids
+   * @param key
+   * @return 
+   */
+  private List<FamilyBasicBlock> occurencesByHash(BlockKey key) {
+    BlockIndex index = model.get().getIndex();
+    Postings postings = index.get(key);
+
+    if (postings == null) {
+      return new ArrayList<>();
+    }
+
+    List<FamilyBasicBlock> result = new ArrayList<>(postings.size());
+    for (int i = 0; i < postings.size(); i++) {
+      result.add(new FamilyBasicBlock(index.getFamily(postings.getFamilyId(i)), index.getBasicBlock(postings, i)));
+    }
+
+    return result;
+  }
+
   /**
    * Gets count of all malware in the given family which contain the given BasicBlock
    * @param family
@@ -484,22 +1222,25 @@ public class TFD {
    * @return 
    */
   public int countOfMalwaresInFamilyByBB(Family family, String code) {
-    Iterator<Map.Entry<String, Malware>> it = family.getMalwares().entrySet().iterator();
-    int result = 0;
+    return countOfMalwaresInFamilyByBB(family, BlockKey.of(code));
+  }
 
-    while (it.hasNext()) {
-      Malware malware = it.next().getValue();
-      Iterator<Map.Entry<String, BasicBlock>> it2 = malware.getBasicBlocks().entrySet().iterator();
+  /**
+   * Gets count of all malware in the given family which contain the given BasicBlock key
+   * @param family
+   * @param key
+   * @return 
+   */
+  public int countOfMalwaresInFamilyByBB(Family family, BlockKey key) {
+    BlockIndex index = model.get().getIndex();
+    Postings postings = index.get(key);
 
-      while (it2.hasNext()) {
-        BasicBlock bb = it2.next().getValue();
-        if (bb.getCode().equals(code)) {
-          result++;
-        }
-      }
+    if (postings == null || family.getId() < 0 || family.getId() >= index.countOfFamilies() 
+            || !index.getFamily(family.getId()).getName().equals(family.getName())) {
+      return 0;
     }
 
-    return result;
+    return index.countOfMalwaresInFamily(postings, family.getId());
   }
 
   /**
@@ -571,129 +1312,170 @@ public class TFD {
   }
 
   /**
-   * Calculates the FamilyClassifier
+   * Scores all families for the last new malware file based on the ScoreType parameter, against the version of the 
+   * model it was read in
+   * @param type 
+   * @return count of the scored BasicBlocks; less than the distinct known BasicBlocks of the malware if it exited early
    */
-  protected void calculateFCs() {
-    //System.out.println("Calculating Family Classifier...");
-    Iterator<Map.Entry<String, Family>> iterator = families.entrySet().iterator();
-    while (iterator.hasNext()) {
-      Map.Entry<String, Family> pair = iterator.next();
-      Family family = pair.getValue();
-
-      HashMap<String, BasicBlock> basicBlocks = family.getBasicBlocks();
-      Iterator<Map.Entry<String, BasicBlock>> it = basicBlocks.entrySet().iterator();
+  public int score(ScoreType type) {
+    int countOfFamilies = candidateModel.getIndex().countOfFamilies();
 
-      while (it.hasNext()) {
-        Map.Entry<String, BasicBlock> bbPair = it.next();
-        BasicBlock basicBlock = bbPair.getValue();
-
-        double mdf = basicBlock.getMDF();
-        double tfd = basicBlock.getDistributionTermFrequency();
-        double fc = mdf * tfd;
-        //System.out.println("----- FC: " + fc);
-        basicBlock.setFC(fc);
-      }
+    if (scores == null || scores.length < countOfFamilies) {
+      scores = new int[countOfFamilies];
+    } else {
+      Arrays.fill(scores, 0);
     }
+
+    return ModelVersion.score(candidateModel.getWinners(type), candidateReader.getIds(), candidateReader.size(), scores, earlyExit ? leaders : null);
   }
 
   /**
-   * Calculates malware distribution frequency
+   * Scores all families for the given malware based on the ScoreType parameter. Each BasicBlock of the malware 
+   * is a vote for the family which has the best measure of it.
+   * <br/>It does not change anything, so many malware may be scored concurrently, also while the next version of the 
+   * model is built.
+   * @param malware
+   * @param type
+   * @param votes scores by family id, which the votes are added to; its length must be the count of families at least
    */
-  protected void calculateMDFs() {
-    //System.out.println("Calculating MDF...");
-    Iterator<Map.Entry<String, Family>> iterator = families.entrySet().iterator();
-    while (iterator.hasNext()) {
-      Map.Entry<String, Family> pair = iterator.next();
-      Family family = pair.getValue();
-
-      HashMap<String, BasicBlock> basicBlocks = family.getBasicBlocks();
-      Iterator<Map.Entry<String, BasicBlock>> it = basicBlocks.entrySet().iterator();
-
-      while (it.hasNext()) {
-        Map.Entry<String, BasicBlock> bbPair = it.next();
-        BasicBlock basicBlock = bbPair.getValue();
+  public void score(Malware malware, ScoreType type, int[] votes) {
+    score(model.get(), malware, type, votes, null);
+  }
 
-        int malwaresCount = this.countOfMalwaresInFamilyByBB(family, basicBlock.getCode());
-        int countOfMalwares = family.getMalwares().size();
-        double mdf = (double) malwaresCount / (double) countOfMalwares;
-        //System.out.println("----- MDF: " + mdf);
-        basicBlock.setMDF(mdf);
+  /**
+   * Scores all families for the given malware based on the ScoreType parameter. If leaders are given, it stops as
+   * soon as the remaining BasicBlocks can not change the best family; the scores are partial then.
+   * @param version of the model the malware is scored against
+   * @param malware
+   * @param type
+   * @param votes scores by family id, which the votes are added to; they must be zero if leaders are given
+   * @param leaders or null to score all BasicBlocks
+   * @return count of the scored BasicBlocks
+   */
+  public static int score(ModelVersion version, Malware malware, ScoreType type, int[] votes, VoteLeaders leaders) {
+    final BlockDictionary malwareDictionary = malware.getFamily().getDictionary();
+    final BlockDictionary dictionary = version.getDictionary();
+    final BlockCounts blocks = malware.getBasicBlocks();
+    final int size = blocks.size();
+    int[] blockIds = blocks.getIds();
+
+    if (malwareDictionary != dictionary) {
+      final int[] ids = blockIds;
+      blockIds = new int[size];
+      for (int i = 0; i < size; i++) {
+        blockIds[i] = dictionary.find(malwareDictionary.getKey(ids[i]));
       }
     }
+
+    return ModelVersion.score(version.getWinners(type), blockIds, size, votes, leaders);
   }
 
   /**
-   * Scores all families for the new malware based on the ScoreType parameter
-   * @param type 
+   * Prints whether the scores of a malware are exact or partial because the scoring exited early
+   * @param scoredBlocks
+   * @param blocks count of the BasicBlocks of the malware
    */
-  public void score(ScoreType type) {
-    scores = new HashMap<>();
-
-    final Iterator<Map.Entry<String, BasicBlock>> itBB = candidateMalware.getBasicBlocks().entrySet().iterator();
-    while (itBB.hasNext()) {
-      final BasicBlock bb = itBB.next().getValue();
-
-      List<FamilyBasicBlock> familyBasicBlocks = null;
-
-      if (type == ScoreType.TFD) {
-        familyBasicBlocks = allOccurencesByHash(bb.getCode());
-      } else if (type == ScoreType.FAM_CLASSIFIER) {
-        familyBasicBlocks = allOccurancesByHashSortByFC(bb.getCode());
-      }
-
-      if (familyBasicBlocks != null && familyBasicBlocks.size() > 0) {
-        FamilyBasicBlock familyBasicBlock = familyBasicBlocks.get(0);
-        addScore(familyBasicBlock.getFamily().getName());
-      }
+  public void showExactness(int scoredBlocks, int blocks) {
+    if (scoredBlocks < blocks) {
+      System.out.println(MessageFormat.format("Early exit: the result was decided after {0} of {1} basic blocks; the scores are partial.", scoredBlocks + "", blocks + ""));
+    } else {
+      System.out.println("Exact: all " + blocks + " basic blocks were scored.");
     }
   }
 
   /**
-   * Based on the scores of families, finds the best matching family
+   * 
+   * @return true if the scoring of a malware stops as soon as the remaining BasicBlocks can not change the result
    */
-  public void findResultFamily() {
-    final Iterator<String> iterator = scores.keySet().iterator();
-    Integer max = 0;
-    String famKey = null;
+  public boolean isEarlyExit() {
+    return earlyExit;
+  }
 
-    while (iterator.hasNext()) {
-      final String next = iterator.next();
-      final Integer score = scores.get(next);
+  /**
+   * 
+   * @param earlyExit true to stop the scoring of a malware as soon as the remaining BasicBlocks can not change the result
+   */
+  public void setEarlyExit(boolean earlyExit) {
+    this.earlyExit = earlyExit;
+  }
 
-      if (score > max) {
-        max = score;
-        famKey = next;
-      }
-    }
+  /**
+   * Finds the family which has the best measure of the given BasicBlock based on the ScoreType parameter.
+   * @param key
+   * @param type
+   * @return family or null if no family has the BasicBlock
+   */
+  public Family bestFamily(BlockKey key, ScoreType type) {
+    ModelVersion current = model.get();
+    int best = current.bestFamilyId(key, type);
+    return best < 0 ? null : current.getIndex().getFamily(best);
+  }
 
-    detectedFamily = families.get(famKey);
+  /**
+   * Finds the family which has the best measure of the given BasicBlock based on the ScoreType parameter.
+   * <br/>Once the measures are calculated, it is read from the table of the best families by BasicBlock id.
+   * @param key
+   * @param type
+   * @return id of the family in the current version of the model or -1 if no family has the BasicBlock
+   */
+  public int bestFamilyId(BlockKey key, ScoreType type) {
+    return model.get().bestFamilyId(key, type);
   }
 
   /**
-   * Adds the score of the given family to the scores HashMap
-   * @param name 
+   * Finds the family which has the best measure of the given BasicBlock of the dictionary of the families
+   * @param blockId
+   * @param type
+   * @return id of the family in the current version of the model or -1 if no family has the BasicBlock
    */
-  private void addScore(String name) {
-    Integer score = scores.get(name);
+  public int bestFamilyId(int blockId, ScoreType type) {
+    return model.get().bestFamilyId(blockId, type);
+  }
 
-    if (score == null) {
-      score = 1;
-    } else {
-      score++;
-    }
+  /**
+   * Based on the scores of families, finds the best matching family in the version of the model the new malware is scored against
+   */
+  public void findResultFamily() {
+    detectedFamily = candidateModel.findResultFamily(scores);
+  }
 
-    scores.put(name, score);
+  /**
+   * Based on the given scores of families, finds the best matching family in one pass. 
+   * <br/>Among equal scores the family with the smallest id, i.e. the first name, wins.
+   * @param scores by family id of the current version of the model
+   * @return best matching family or null if no family has any score
+   */
+  public Family findResultFamily(int[] scores) {
+    return model.get().findResultFamily(scores);
   }
 
   /**
    * Prints the families' scores
    */
   public void showScores() {
-    Iterator<String> iterator = scores.keySet().iterator();
-    while (iterator.hasNext()) {
-      String family = iterator.next();
-      Integer score = scores.get(family);
-      System.out.println("Family: " + family + ": " + score);
+    showScores(candidateModel, scores);
+  }
+
+  /**
+   * Prints the given scores of families; families without any score are not printed
+   * @param scores by family id of the current version of the model
+   */
+  public void showScores(int[] scores) {
+    showScores(model.get(), scores);
+  }
+
+  /**
+   * Prints the given scores of families; families without any score are not printed
+   * @param version of the model the scores are by family id of
+   * @param scores by family id
+   */
+  private static void showScores(ModelVersion version, int[] scores) {
+    BlockIndex index = version.getIndex();
+
+    for (int id = 0; id < index.countOfFamilies(); id++) {
+      if (scores[id] > 0) {
+        System.out.println("Family: " + index.getFamily(id).getName() + ": " + scores[id]);
+      }
     }
   }
 
@@ -703,10 +1485,10 @@ public class TFD {
    * @param type
    * @param showInfo
    * @return 
+   * @throws IOException if the classification of a directory failed
    */
-  public int add(String malwareFile, ScoreType type, boolean showInfo) {
+  public int add(String malwareFile, ScoreType type, boolean showInfo) throws IOException {
     File file = new File(malwareFile);
-    int result = 0;
     if (file.isDirectory()) {
       final File[] files = file.listFiles(new FileFilter() {
         @Override
@@ -715,25 +1497,183 @@ public class TFD {
         }
       });
 
-      for (File f : files) {
-        //try {
-        addCandidate(f.getAbsolutePath(), type, showInfo);
-        System.out.println("--------------------------------------------------------------------");
-        result++;
-        //} catch (Exception ex) {
-        //ex.printStackTrace();
-        //}
-      }
-
-      return result;
+      return classifyBatch(files, type, showInfo);
     } else if (file.isFile()) {
       addCandidate(malwareFile, type, showInfo);
+      addClassified();
       return 1;
     } else {
       return 0;
     }
   }
 
+  /**
+   * Adds the classified malware to their detected families in place, instead of loading all families again.
+   * <br/>Only the measures of the detected families, and the measures of their BasicBlocks in the other families, 
+   * are calculated again. If there is a snapshot, the malware are appended to its journal too.
+   */
+  public void addClassified() {
+    if (classified.isEmpty() && classifiedFiles.isEmpty()) {
+      return;
+    }
+
+    final long startTime = System.nanoTime();
+    int count = classified.size() + classifiedFiles.size();
+    List<Malware> added = new ArrayList<>();
+
+    synchronized (writeLock) {
+      awaitCompaction();
+      ModelVersion current = model.get();
+      BlockDictionary dictionary = current.getDictionary();
+      HashMap<String, Family> families = new HashMap<>(current.getFamilies());
+
+      for (Map.Entry<Malware, Family> entry : classified.entrySet()) {
+        Malware candidate = entry.getKey();
+        Family family = familyOf(current, families, entry.getValue(), candidate.getName());
+
+        if (family == null || !isNew(family, candidate.getName())) {
+          continue;
+        }
+
+        BlockDictionary candidateDictionary = candidate.getFamily().getDictionary();
+        BlockCounts blocks = candidate.getBasicBlocks();
+        Malware malware = new Malware(candidate.getName(), family);
+
+        for (int i = 0; i < blocks.size(); i++) {
+          malware.addBasicBlock(dictionary.intern(candidateDictionary.getKey(blocks.getId(i))), blocks.getCount(i));
+        }
+        malware.freeze();
+
+        addClassified(family, malware, added);
+      }
+
+      for (Map.Entry<File, Family> entry : classifiedFiles.entrySet()) {
+        Family family = familyOf(current, families, entry.getValue(), entry.getKey().getName());
+
+        if (family == null || !isNew(family, entry.getKey().getName())) {
+          continue;
+        }
+
+        try {
+          Malware read = Loader.readMalware(entry.getKey(), new Family(CANDIDATE_FAMILY_NAME, dictionary), new BlockReader(dictionary));
+          addClassified(family, new Malware(read.getName(), family, read.getBasicBlocks()), added);
+        } catch (IOException ex) {
+          Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+        }
+      }
+
+      classified.clear();
+      classifiedFiles.clear();
+
+      if (journal != null) {
+        try {
+          journal.commit();
+        } catch (IOException ex) {
+          Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+        }
+      }
+
+      if (!added.isEmpty()) {
+        ModelVersion refreshed = refresh(current, families, added, calculator);
+        publish(families, dictionary, refreshed.getIndex(), refreshed.getTermFrequencyRatioSums(), refreshed.getTfdWinners(), refreshed.getFcWinners(),
+                refreshed.isTfdCalculated(), refreshed.isFcCalculated());
+      }
+
+      compactIfNeeded();
+    }
+
+    System.out.println(MessageFormat.format("{0} malware added to {1} families in {2} ms.", count, familiesOf(added).size(), 
+            (System.nanoTime() - startTime) / 1000000));
+  }
+
+  /**
+   * 
+   * @param base version of the model the next version is built from
+   * @param families of the next version of the model
+   * @param detected family which a malware is classified to, in the version of the model it was scored against
+   * @param malwareName
+   * @return family of the same name in the given families, copied from the base version the first time it is asked for,
+   * or null if it is not there any more
+   */
+  private static Family familyOf(ModelVersion base, HashMap<String, Family> families, Family detected, String malwareName) {
+    Family result = families.get(detected.getName());
+
+    if (result == null) {
+      System.out.println("Family " + detected.getName() + " not found. Malware " + malwareName + " not added!");
+    } else if (result == base.getFamilies().get(result.getName())) {
+      result = result.copy();
+      families.put(result.getName(), result);
+    }
+
+    return result;
+  }
+
+  /**
+   * 
+   * @param family
+   * @param malwareName
+   * @return true if the family does not have a malware of the given name yet
+   */
+  private boolean isNew(Family family, String malwareName) {
+    if (family.getMalwares().containsKey(malwareName)) {
+      System.out.println("Malware " + malwareName + " already exists in " + family.getName() + ". Not added again!");
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Adds the given classified malware to the given family and appends it to the journal
+   * @param family
+   * @param malware which BasicBlocks are interned in the dictionary of the families
+   * @param added malware which are added to their families
+   */
+  private void addClassified(Family family, Malware malware, List<Malware> added) {
+    if (addMalware(family, malware)) {
+      added.add(malware);
+
+      if (addedDuringRebuild != null) {
+        addedDuringRebuild.add(malware);
+      }
+
+      if (journal != null) {
+        try {
+          journal.append(malware);
+        } catch (IOException ex) {
+          Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the given malware and its BasicBlocks to the given family, unless the family already has a malware of the same name
+   * @param family
+   * @param malware which BasicBlocks are interned in the dictionary of the families
+   * @return true if the malware is added
+   */
+  private boolean addMalware(Family family, Malware malware) {
+    if (family.getMalwares().containsKey(malware.getName())) {
+      System.out.println("Malware " + malware.getName() + " already exists in " + family.getName() + ". Not added again!");
+      return false;
+    }
+
+    try {
+      family.addMalware(malware);
+    } catch (Exception ex) {
+      Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+      return false;
+    }
+
+    BlockCounts blocks = malware.getBasicBlocks();
+    for (int i = 0; i < blocks.size(); i++) {
+      family.addBasicBlock(blocks.getId(i), blocks.getCount(i));
+    }
+
+    return true;
+  }
+
   /**
    * Adds a file or all files of a directory to the in memory DB
    * @param malwareFile
@@ -743,21 +1683,34 @@ public class TFD {
   public void addCandidate(String malwareFile, ScoreType type, boolean showInfo) {
     final long startTime = System.nanoTime();
     detectedFamily = null;
-    candidateFamily = Loader.loadMalware(malwareFile, CANDIDATE_FAMILY_NAME);
-    candidateMalware = candidateFamily.getMalwares().entrySet().iterator().next().getValue();
+    File file = new File(malwareFile);
 
-    if (showInfo) {
-      System.out.println("Updating the database ...");
+    if (file.length() >= STREAMING_SIZE) {
+      addStreamingCandidate(file, type, showInfo, startTime);
+      return;
+    }
+
+    if (calculateModel(type) && showInfo) {
+      System.out.println("Database updated.");
+      calculator.showTimings();
+    }
+
+    candidateModel = model.get();
+    if (candidateReader == null || candidateReader.getDictionary() != candidateModel.getDictionary()) {
+      candidateReader = new DistinctBlockReader(candidateModel.getDictionary());
     }
-    calculateTermFrequencyRatio();
-    calculateDistributionTermFrequency();
 
-    if (type == ScoreType.FAM_CLASSIFIER) {
-      calculateMDFs();
-      calculateFCs();
+    try {
+      candidateReader.read(file);
+    } catch (IOException ex) {
+      Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+      System.out.print("Malware can not be classified: ");
+      System.out.println(malwareFile);
+      System.out.println("");
+      return;
     }
 
-    score(type);
+    int scoredBlocks = score(type);
     findResultFamily();
     if (showInfo) {
       final long endTime = System.nanoTime();
@@ -766,22 +1719,149 @@ public class TFD {
       System.out.println("Duration time: " + timeSec + " seconds");
       showScores();
     }
+    if (earlyExit) {
+      showExactness(scoredBlocks, candidateReader.size());
+    }
     //System.out.println("Suggested family is: " + detectedFamily.getName());
     if (detectedFamily == null) {
       System.out.print("Malware can not be classified: ");
       System.out.println(malwareFile);
       System.out.println("");
     } else {
-      String directoryName = detectedFamily.getName();
-      File sourceFile = new File(malwareFile);
-      File destinationFile = new File(this.familiesHome + "/" + directoryName + "/" + sourceFile.getName());
-      try {
-        Files.copy(sourceFile, destinationFile);
-        System.out.println(sourceFile.getName() + " was copied to: " + directoryName + " family.");
-      } catch (IOException e) {
-        e.printStackTrace();
-        System.out.println("Error in copying the file: " + sourceFile.getAbsolutePath());
+      copyToFamily(file, null, detectedFamily);
+    }
+  }
+
+  /**
+   * Classifies a big malware file by scoring it while it is read. If it is classified, it is read again when it is
+   * added to its family.
+   * @param file
+   * @param type
+   * @param showInfo
+   * @param startTime 
+   */
+  private void addStreamingCandidate(File file, ScoreType type, boolean showInfo, long startTime) {
+    if (calculateModel(type) && showInfo) {
+      System.out.println("Database updated.");
+      calculator.showTimings();
+    }
+
+    StreamingScorer scorer = streamingScorer();
+    candidateModel = scorer.getModel();
+
+    try {
+      scores = scorer.score(file, type);
+    } catch (IOException ex) {
+      Logger.getLogger(TFD.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+      System.out.print("Malware can not be classified: ");
+      System.out.println(file.getPath());
+      System.out.println("");
+      return;
+    }
+
+    findResultFamily();
+    if (showInfo) {
+      final Double timeSec = (double) (System.nanoTime() - startTime) / 1000000000.0;
+      System.out.println("Duration time: " + timeSec + " seconds (streamed)");
+      showScores();
+    }
+    if (earlyExit) {
+      int blocks = scorer.getCountOfBasicBlocks();
+      showExactness(blocks, blocks);
+    }
+
+    if (detectedFamily == null) {
+      System.out.print("Malware can not be classified: ");
+      System.out.println(file.getPath());
+      System.out.println("");
+    } else {
+      copyToFamily(file, null, detectedFamily);
+    }
+  }
+
+  /**
+   * 
+   * @return scorer of the big malware files against the current version of the model
+   */
+  StreamingScorer streamingScorer() {
+    ModelVersion current = model.get();
+
+    if (streamingScorer == null || streamingScorer.getModel() != current) {
+      streamingScorer = new StreamingScorer(current);
+    }
+
+    return streamingScorer;
+  }
+
+  /**
+   * Classifies the given malware files as one batch on a thread pool. All files are scored against the same model; 
+   * the classified files are copied to their families and added to them after the whole batch is scored.
+   * @param files
+   * @param type
+   * @param showInfo
+   * @return count of the files
+   * @throws IOException if the classification of a file failed or the batch was interrupted; nothing is added then
+   */
+  public int classifyBatch(File[] files, ScoreType type, boolean showInfo) throws IOException {
+    if (calculateModel(type) && showInfo) {
+      System.out.println("Database updated.");
+      calculator.showTimings();
+    }
+
+    BatchClassifier classifier = new BatchClassifier(this, threads, earlyExit);
+    List<BatchClassifier.Result> results = classifier.classify(files, type);
+
+    if (showInfo) {
+      System.out.println(MessageFormat.format("{0} distinguished basic blocks of {1} basic blocks looked up once for {2} files.", 
+              classifier.getCountOfLookups() + "", classifier.getCountOfBasicBlocks() + "", results.size()));
+    }
+
+    for (BatchClassifier.Result result : results) {
+      if (showInfo) {
+        final Double timeSec = (double) result.getDuration() / 1000000000.0;
+        System.out.println("Duration time: " + timeSec + " seconds");
+        showScores(classifier.getModel(), result.getScores());
+      }
+      if (earlyExit) {
+        showExactness(result.getCountOfScoredBlocks(), result.getCountOfBlocks());
+      }
+
+      if (result.getFamily() == null) {
+        System.out.print("Malware can not be classified: ");
+        System.out.println(result.getFile().getAbsolutePath());
+        System.out.println("");
+      } else {
+        copyToFamily(result.getFile(), result.getMalware(), result.getFamily());
       }
+      System.out.println("--------------------------------------------------------------------");
+    }
+
+    addClassified();
+    return results.size();
+  }
+
+  /**
+   * Copies the given classified malware file to the directory of its family. The malware is added to the family 
+   * by {@link #addClassified()}; if it was scored without being read into a malware, it is read again from its copy.
+   * @param sourceFile
+   * @param malware or null if it was scored without being read into a malware
+   * @param family 
+   */
+  private void copyToFamily(File sourceFile, Malware malware, Family family) {
+    String directoryName = family.getName();
+    File destinationFile = new File(this.familiesHome + "/" + directoryName + "/" + sourceFile.getName());
+    try {
+      Files.copy(sourceFile, destinationFile);
+      System.out.println(sourceFile.getName() + " was copied to: " + directoryName + " family.");
+      if (malware == null) {
+        classifiedFiles.put(destinationFile, family);
+      } else {
+        classified.put(malware, family);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.out.println("Error in copying the file: " + sourceFile.getAbsolutePath());
     }
   }
+
 }
@@ -0,0 +1,75 @@
+package vida.phd.tfd;
+
+/**
+ * Keeps track of the leader and the runner-up of the votes by family id while a malware is scored, so the scoring
+ * can stop as soon as the remaining BasicBlocks can not change the result any more.
+ * <br/>Each BasicBlock is one vote at most, so the leader is decided once its votes are more than the votes of the
+ * runner-up plus the count of the remaining BasicBlocks. The leader among equal votes is the family with the
+ * smallest id, the same as {@link TFD#findResultFamily(int[])}.
+ * @author Vida
+ */
+public class VoteLeaders {
+
+  /**
+   * Id of the family with the most votes; -1 before the first vote
+   */
+  private int leader;
+
+  /**
+   * Id of the family with the most votes after the leader; -1 if no other family has any vote
+   */
+  private int runnerUp;
+
+  /**
+   * Constructor
+   */
+  public VoteLeaders() {
+    reset();
+  }
+
+  /**
+   * Forgets the leaders, before the next malware is scored
+   */
+  public final void reset() {
+    leader = -1;
+    runnerUp = -1;
+  }
+
+  /**
+   * Adds a vote for the given family
+   * @param votes scores by family id
+   * @param family id of the family
+   */
+  public void vote(int[] votes, int family) {
+    votes[family]++;
+
+    if (family == leader) {
+      return;
+    }
+
+    if (leader < 0 || votes[family] > votes[leader] || (votes[family] == votes[leader] && family < leader)) {
+      runnerUp = leader;
+      leader = family;
+    } else if (runnerUp < 0 || votes[family] > votes[runnerUp]) {
+      runnerUp = family;
+    }
+  }
+
+  /**
+   *
+   * @param votes scores by family id
+   * @param remaining count of the BasicBlocks which are not scored yet
+   * @return true if the remaining BasicBlocks can not change the leader
+   */
+  public boolean isDecided(int[] votes, int remaining) {
+    return leader >= 0 && votes[leader] > (runnerUp < 0 ? 0 : votes[runnerUp]) + remaining;
+  }
+
+  /**
+   *
+   * @return id of the family with the most votes or -1 if there is no vote
+   */
+  public int getLeader() {
+    return leader;
+  }
+}
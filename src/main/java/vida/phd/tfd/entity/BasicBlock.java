@@ -4,76 +4,78 @@ import java.text.DecimalFormat;
 import java.util.Objects;
 
 /**
- * Basic Block class
+ * Basic Block class. It is a read-only view of one position of a family; the id, count and metrics of the BasicBlock
+ * are kept in the columns of the family, which are written only by the calculation of the model.
  * @author Vida
  */
 public class BasicBlock implements Comparable<BasicBlock> {
 
   /**
-   * Hash code of the BasicBlock
+   * Family of the BasicBlock
    */
-  private final String code;
+  private final Family family;
   
   /**
-   * Count of occurrences of the BasicBlock in the current context (family/malware)
+   * Position of the BasicBlock in the columns of the family
    */
-  private int count;
-  
-  /**
-   * Term frequency ratio of the BasicBlock in the current context (family/malware)
-   */
-  private double termFrequencyRatio;
-  
+  private final int position;
+
   /**
-   * Distributed term frequency of the BasicBlock in the current context (family/malware)
+   * Constructor which takes the family and the position of the basic block in the family.
+   * @param family
+   * @param position 
    */
-  private double distributionTermFrequency;
+  BasicBlock(Family family, int position) {
+    this.family = family;
+    this.position = position;
+  }
 
   /**
-   * Malware distribution frequency
+   * 
+   * @return hash of the basic block
    */
-  private double MDF;
-  
+  public String getCode() {
+    return getKey().toString();
+  }
+
   /**
-   * Family classifier
+   * 
+   * @return binary key of the hash of the basic block
    */
-  private double FC;
+  public BlockKey getKey() {
+    return family.getDictionary().getKey(getId());
+  }
 
   /**
-   * Constructor which takes the hash (code) of basic block as the only parameter.
-   * @param code
-   * @throws Exception 
+   * 
+   * @return id of the basic block in the dictionary
    */
-  public BasicBlock(String code) throws Exception {
-    if (code != null && code.trim().length() > 0) {
-      this.code = code;
-      this.count = 1;
-    } else {
-      throw new Exception("Code of BB is null or empty!");
-    }
+  public int getId() {
+    return family.getBlockId(position);
   }
 
   /**
    * 
-   * @return hash of the basic block
+   * @return family of the basic block
    */
-  public String getCode() {
-    return code;
+  public Family getFamily() {
+    return family;
   }
 
   /**
    * 
-   * @return count of occurrences of the basic block in the context (family/malware)
+   * @return position of the basic block in the family
    */
-  public int getCount() {
-    return count;
+  public int getPosition() {
+    return position;
   }
-  
+
   /**
-   * Increments the count of occurrences by one 
+   * 
+   * @return count of occurrences of the basic block in the family
    */
-  public void incCound() {
-    this.count++;
+  public int getCount() {
+    return family.getCount(position);
   }
 
   /**
@@ -81,15 +83,7 @@ public class BasicBlock implements Comparable<BasicBlock> {
    * @return termFrequencyRatio
    */
   public double getTermFrequencyRatio() {
-    return termFrequencyRatio;
-  }
-
-  /**
-   * setter for termFrequencyRatio
-   * @param termFrequencyRatio 
-   */
-  public void setTermFrequencyRatio(double termFrequencyRatio) {
-    this.termFrequencyRatio = termFrequencyRatio;
+    return family.getTermFrequencyRatios()[position];
   }
 
   /**
@@ -97,15 +91,7 @@ public class BasicBlock implements Comparable<BasicBlock> {
    * @return distributionTermFrequency
    */
   public double getDistributionTermFrequency() {
-    return distributionTermFrequency;
-  }
-
-  /**
-   * setter for distributionTermFrequency
-   * @param distributionTermFrequency 
-   */
-  public void setDistributionTermFrequency(double distributionTermFrequency) {
-    this.distributionTermFrequency = distributionTermFrequency;
+    return family.getDistributionTermFrequencies()[position];
   }
 
   /**
@@ -114,7 +100,7 @@ public class BasicBlock implements Comparable<BasicBlock> {
    */
   @Override
   public int hashCode() {
-    int hash = Objects.hashCode(this.code);
+    int hash = Objects.hashCode(getKey());
     return hash;
   }
 
@@ -132,7 +118,7 @@ public class BasicBlock implements Comparable<BasicBlock> {
       return false;
     }
     final BasicBlock other = (BasicBlock) obj;
-    if (!Objects.equals(this.code, other.code)) {
+    if (!Objects.equals(getKey(), other.getKey())) {
       return false;
     }
     return true;
@@ -146,7 +132,7 @@ public class BasicBlock implements Comparable<BasicBlock> {
   public String toString() {
     DecimalFormat df = new DecimalFormat("###,###.############");
 
-    return "BasicBlock{" + "Hash=" + code + ", count: " + count + ", TFR: " + df.format(termFrequencyRatio) + ", TFD: " + df.format(distributionTermFrequency) + "}";
+    return "BasicBlock{" + "Hash=" + getKey() + ", count: " + getCount() + ", TFR: " + df.format(getTermFrequencyRatio()) + ", TFD: " + df.format(getDistributionTermFrequency()) + "}";
   }
 
   /**
@@ -156,9 +142,12 @@ public class BasicBlock implements Comparable<BasicBlock> {
    */
   @Override
   public int compareTo(BasicBlock bb) {
-    if (distributionTermFrequency > bb.distributionTermFrequency) {
+    double distributionTermFrequency = getDistributionTermFrequency();
+    double other = bb.getDistributionTermFrequency();
+
+    if (distributionTermFrequency > other) {
       return 1;
-    } else if (distributionTermFrequency == bb.distributionTermFrequency) {
+    } else if (distributionTermFrequency == other) {
       return 0;
     } else {
       return -1;
@@ -170,15 +159,7 @@ public class BasicBlock implements Comparable<BasicBlock> {
    * @return MDF
    */
   public double getMDF() {
-    return MDF;
-  }
-
-  /**
-   * Sets MDF
-   * @param MDF 
-   */
-  public void setMDF(double MDF) {
-    this.MDF = MDF;
+    return family.getMDFs()[position];
   }
 
   /**
@@ -186,14 +167,6 @@ public class BasicBlock implements Comparable<BasicBlock> {
    * @return FC 
    */
   public double getFC() {
-    return FC;
-  }
-
-  /**
-   * Sets FC
-   * @param FC 
-   */
-  public void setFC(double FC) {
-    this.FC = FC;
+    return family.getFCs()[position];
   }
 }
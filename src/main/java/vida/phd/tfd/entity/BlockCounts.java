@@ -0,0 +1,215 @@
+package vida.phd.tfd.entity;
+
+import vida.phd.tfd.util.IntIntMap;
+
+import java.util.Arrays;
+
+/**
+ * Counts of the BasicBlocks of a family or a malware, kept as parallel primitive arrays of block ids and counts.
+ * <br/>While blocks are being added a hash map finds the position of each id; freezing sorts the arrays by id, 
+ * drops the map and positions are found by binary search afterwards.
+ * @author Vida
+ */
+public class BlockCounts {
+
+  /**
+   * Block ids by position
+   */
+  private int[] ids;
+
+  /**
+   * Counts by position
+   */
+  private int[] counts;
+
+  /**
+   * Count of the distinct blocks
+   */
+  private int size;
+
+  /**
+   * Sum of the counts
+   */
+  private int total;
+
+  /**
+   * Positions by block id; null when frozen
+   */
+  private IntIntMap positions;
+
+  /**
+   * Default constructor
+   */
+  public BlockCounts() {
+    ids = new int[16];
+    counts = new int[16];
+    positions = new IntIntMap();
+  }
+
+  /**
+   * Constructor which takes blocks which are already sorted by id, e.g. read from a snapshot; the blocks are frozen.
+   * @param ids
+   * @param counts 
+   */
+  public BlockCounts(int[] ids, int[] counts) {
+    this.ids = ids;
+    this.counts = counts;
+    size = ids.length;
+
+    for (int count : counts) {
+      total += count;
+    }
+  }
+
+  /**
+   * Adds one occurrence of the given block
+   * @param id 
+   */
+  public void add(int id) {
+    add(id, 1);
+  }
+
+  /**
+   * Adds the given count of occurrences of the given block
+   * @param id
+   * @param count 
+   */
+  public void add(int id, int count) {
+    if (positions == null) {
+      thaw();
+    }
+
+    int position = positions.get(id, -1);
+
+    if (position < 0) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+        counts = Arrays.copyOf(counts, size * 2);
+      }
+
+      ids[size] = id;
+      counts[size] = count;
+      positions.put(id, size);
+      size++;
+    } else {
+      counts[position] += count;
+    }
+
+    total += count;
+  }
+
+  /**
+   * Sorts the blocks by id, releases the unused capacity and drops the hash map
+   */
+  public void freeze() {
+    if (positions == null) {
+      return;
+    }
+
+    long[] packed = new long[size];
+    for (int i = 0; i < size; i++) {
+      packed[i] = ((long) ids[i] << 32) | (counts[i] & 0xffffffffL);
+    }
+    Arrays.sort(packed);
+
+    ids = new int[size];
+    counts = new int[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = (int) (packed[i] >>> 32);
+      counts[i] = (int) packed[i];
+    }
+
+    positions = null;
+  }
+
+  /**
+   * 
+   * @return frozen copy of the blocks, which does not share its arrays with these blocks
+   */
+  public BlockCounts copy() {
+    freeze();
+    return new BlockCounts(Arrays.copyOf(ids, size), Arrays.copyOf(counts, size));
+  }
+
+  /**
+   * Builds the hash map again so blocks can be added
+   */
+  private void thaw() {
+    positions = new IntIntMap(size);
+    for (int i = 0; i < size; i++) {
+      positions.put(ids[i], i);
+    }
+  }
+
+  /**
+   * 
+   * @return true if the blocks are sorted by id
+   */
+  public boolean isFrozen() {
+    return positions == null;
+  }
+
+  /**
+   * 
+   * @param id
+   * @return position of the given block or -1 if it is not added
+   */
+  public int indexOf(int id) {
+    if (positions != null) {
+      return positions.get(id, -1);
+    }
+
+    int position = Arrays.binarySearch(ids, 0, size, id);
+    return position >= 0 ? position : -1;
+  }
+
+  /**
+   * 
+   * @return count of the distinct blocks
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * 
+   * @return sum of the counts of all blocks
+   */
+  public int total() {
+    return total;
+  }
+
+  /**
+   * 
+   * @param position
+   * @return block id at the given position
+   */
+  public int getId(int position) {
+    return ids[position];
+  }
+
+  /**
+   * 
+   * @param position
+   * @return count at the given position
+   */
+  public int getCount(int position) {
+    return counts[position];
+  }
+
+  /**
+   * Backing array of the block ids, for tight loops. Only the first {@link #size()} elements are valid and it must not be modified.
+   * @return ids by position
+   */
+  public int[] getIds() {
+    return ids;
+  }
+
+  /**
+   * Backing array of the counts, for tight loops. Only the first {@link #size()} elements are valid and it must not be modified.
+   * @return counts by position
+   */
+  public int[] getCounts() {
+    return counts;
+  }
+}
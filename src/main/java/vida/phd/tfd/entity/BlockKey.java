@@ -0,0 +1,433 @@
+package vida.phd.tfd.entity;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Binary key of a BasicBlock hash. Hex hashes of MD5, SHA-1 and SHA-256 width are decoded into fixed-width keys,
+ * which take a fraction of the memory of the hex String. <br/>The bits of a hash are already random, so the first
+ * long is used as the hash value of the key. Any other hash is kept as text.
+ * @author Vida
+ */
+public abstract class BlockKey {
+
+  /**
+   * Hex digits for printing the keys
+   */
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * Kinds of the keys in their binary form
+   */
+  private static final byte TEXT = 0, MD5 = 1, SHA1 = 2, SHA256 = 3;
+
+  /**
+   * Creates the key of the given hash
+   * @param code hash of the BasicBlock
+   * @return BlockKey
+   * @throws IllegalArgumentException if the code is null or empty
+   */
+  public static BlockKey of(String code) {
+    if (code == null || code.length() == 0) {
+      throw new IllegalArgumentException("Code of BB is null or empty!");
+    }
+
+    int length = code.length();
+    if (isHex(code)) {
+      if (length == 32) {
+        return new Md5(hex(code, 0, 16), hex(code, 16, 16));
+      } else if (length == 40) {
+        return new Sha1(hex(code, 0, 16), hex(code, 16, 16), (int) hex(code, 32, 8));
+      } else if (length == 64) {
+        return new Sha256(hex(code, 0, 16), hex(code, 16, 16), hex(code, 32, 16), hex(code, 48, 16));
+      }
+    }
+
+    return new Text(code);
+  }
+
+  /**
+   * Reads a key which is written by {@link #write(ByteBuffer)}
+   * @param buffer
+   * @return BlockKey
+   * @throws IllegalArgumentException if the kind of the key is unknown
+   */
+  public static BlockKey read(ByteBuffer buffer) {
+    byte kind = buffer.get();
+
+    switch (kind) {
+      case MD5:
+        return new Md5(buffer.getLong(), buffer.getLong());
+      case SHA1:
+        return new Sha1(buffer.getLong(), buffer.getLong(), buffer.getInt());
+      case SHA256:
+        return new Sha256(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+      case TEXT:
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new Text(new String(bytes, StandardCharsets.UTF_8));
+      default:
+        throw new IllegalArgumentException("Unknown kind of BlockKey: " + kind);
+    }
+  }
+
+  /**
+   * 
+   * @return count of the bytes which {@link #write(ByteBuffer)} writes
+   */
+  public abstract int serializedSize();
+
+  /**
+   * Writes the key in its binary form
+   * @param buffer 
+   */
+  public abstract void write(ByteBuffer buffer);
+
+  /**
+   * 
+   * @param code
+   * @return true if all the characters of the code are hex digits
+   */
+  private static boolean isHex(String code) {
+    for (int i = 0; i < code.length(); i++) {
+      if (digit(code.charAt(i)) < 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Decodes the given count of hex digits
+   * @param code
+   * @param from
+   * @param length
+   * @return 
+   */
+  private static long hex(String code, int from, int length) {
+    long result = 0;
+
+    for (int i = from; i < from + length; i++) {
+      result = (result << 4) | digit(code.charAt(i));
+    }
+
+    return result;
+  }
+
+  /**
+   * 
+   * @param c
+   * @return value of the given ASCII hex digit or -1 if it is not a hex digit
+   */
+  static int digit(int c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    } else if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    } else if (c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
+    } else {
+      return -1;
+    }
+  }
+
+  /**
+   * Appends the given count of hex digits of the value to the builder
+   * @param builder
+   * @param value
+   * @param digits 
+   */
+  private static void appendHex(StringBuilder builder, long value, int digits) {
+    for (int i = digits - 1; i >= 0; i--) {
+      builder.append(HEX[(int) (value >>> (i * 4)) & 0xf]);
+    }
+  }
+
+  /**
+   * Reusable, mutable key which decodes a hash from bytes without allocation. It is equal to the BlockKey of the
+   * same hash, so it can be used to look keys up in hash based collections; {@link #toKey()} creates the BlockKey to keep.
+   */
+  public static final class Probe {
+
+    private int length;
+    private long a;
+    private long b;
+    private long c;
+    private long d;
+
+    /**
+     * Decodes the hex hash in the given range of bytes
+     * @param bytes
+     * @param from inclusive
+     * @param to exclusive
+     * @return false if it is not a hex MD5, SHA-1 or SHA-256 hash; the probe can not be used then
+     */
+    public boolean decode(byte[] bytes, int from, int to) {
+      length = to - from;
+      if (length != 32 && length != 40 && length != 64) {
+        length = 0;
+        return false;
+      }
+
+      a = 0;
+      b = 0;
+      c = 0;
+      d = 0;
+
+      for (int i = 0; i < length; i++) {
+        int digit = digit(bytes[from + i]);
+        if (digit < 0) {
+          length = 0;
+          return false;
+        }
+
+        switch (i >> 4) {
+          case 0:
+            a = (a << 4) | digit;
+            break;
+          case 1:
+            b = (b << 4) | digit;
+            break;
+          case 2:
+            c = (c << 4) | digit;
+            break;
+          default:
+            d = (d << 4) | digit;
+        }
+      }
+
+      return true;
+    }
+
+    /**
+     * 
+     * @return immutable BlockKey of the decoded hash
+     */
+    public BlockKey toKey() {
+      if (length == 32) {
+        return new Md5(a, b);
+      } else if (length == 40) {
+        return new Sha1(a, b, (int) c);
+      } else if (length == 64) {
+        return new Sha256(a, b, c, d);
+      } else {
+        throw new IllegalStateException("No hash is decoded");
+      }
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (a ^ (a >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj instanceof Md5) {
+        Md5 other = (Md5) obj;
+        return length == 32 && a == other.a && b == other.b;
+      } else if (obj instanceof Sha1) {
+        Sha1 other = (Sha1) obj;
+        return length == 40 && a == other.a && b == other.b && (int) c == other.c;
+      } else if (obj instanceof Sha256) {
+        Sha256 other = (Sha256) obj;
+        return length == 64 && a == other.a && b == other.b && c == other.c && d == other.d;
+      }
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return length == 0 ? "" : toKey().toString();
+    }
+  }
+
+  /**
+   * MD5 hash; 128 bits
+   */
+  static final class Md5 extends BlockKey {
+
+    private final long a;
+    private final long b;
+
+    Md5(long a, long b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (a ^ (a >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Md5)) {
+        return false;
+      }
+      final Md5 other = (Md5) obj;
+      return a == other.a && b == other.b;
+    }
+
+    @Override
+    public int serializedSize() {
+      return 17;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) {
+      buffer.put(MD5).putLong(a).putLong(b);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder(32);
+      appendHex(builder, a, 16);
+      appendHex(builder, b, 16);
+      return builder.toString();
+    }
+  }
+
+  /**
+   * SHA-1 hash; 160 bits
+   */
+  static final class Sha1 extends BlockKey {
+
+    private final long a;
+    private final long b;
+    private final int c;
+
+    Sha1(long a, long b, int c) {
+      this.a = a;
+      this.b = b;
+      this.c = c;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (a ^ (a >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Sha1)) {
+        return false;
+      }
+      final Sha1 other = (Sha1) obj;
+      return a == other.a && b == other.b && c == other.c;
+    }
+
+    @Override
+    public int serializedSize() {
+      return 21;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) {
+      buffer.put(SHA1).putLong(a).putLong(b).putInt(c);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder(40);
+      appendHex(builder, a, 16);
+      appendHex(builder, b, 16);
+      appendHex(builder, c, 8);
+      return builder.toString();
+    }
+  }
+
+  /**
+   * SHA-256 hash; 256 bits
+   */
+  static final class Sha256 extends BlockKey {
+
+    private final long a;
+    private final long b;
+    private final long c;
+    private final long d;
+
+    Sha256(long a, long b, long c, long d) {
+      this.a = a;
+      this.b = b;
+      this.c = c;
+      this.d = d;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (a ^ (a >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Sha256)) {
+        return false;
+      }
+      final Sha256 other = (Sha256) obj;
+      return a == other.a && b == other.b && c == other.c && d == other.d;
+    }
+
+    @Override
+    public int serializedSize() {
+      return 33;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) {
+      buffer.put(SHA256).putLong(a).putLong(b).putLong(c).putLong(d);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder(64);
+      appendHex(builder, a, 16);
+      appendHex(builder, b, 16);
+      appendHex(builder, c, 16);
+      appendHex(builder, d, 16);
+      return builder.toString();
+    }
+  }
+
+  /**
+   * Any hash which is not a hex MD5, SHA-1 or SHA-256
+   */
+  static final class Text extends BlockKey {
+
+    private final String code;
+
+    Text(String code) {
+      this.code = code;
+    }
+
+    @Override
+    public int hashCode() {
+      return code.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Text)) {
+        return false;
+      }
+      return Objects.equals(code, ((Text) obj).code);
+    }
+
+    @Override
+    public int serializedSize() {
+      return 5 + code.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) {
+      byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+      buffer.put(TEXT).putInt(bytes.length).put(bytes);
+    }
+
+    @Override
+    public String toString() {
+      return code;
+    }
+  }
+}
@@ -1,8 +1,13 @@
 package vida.phd.tfd.entity;
 
+import vida.phd.tfd.index.BlockDictionary;
+import vida.phd.tfd.index.Ranking;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -11,15 +16,74 @@ import java.util.Objects;
  */
 public class Family {
 
+  /**
+   * Metric columns of the BasicBlocks
+   */
+  public enum Metric {
+    TFR, TFD, MDF, FC;
+  }
+
   /**
    * Name of the family
    */
   private final String name;
+
+  /**
+   * Id of the family which is assigned when the families are indexed
+   */
+  private int id = -1;
+
+  /**
+   * Dictionary of the hashes of the BasicBlocks
+   */
+  private final BlockDictionary dictionary;
   
   /**
-   * HashMap to keep all the BasicBlocks of the family
+   * Ids and counts of all the BasicBlocks of the family
+   */
+  private BlockCounts blocks;
+
+  /**
+   * True if the blocks are shared with the family this family is copied from; they are copied before they are changed
+   */
+  private boolean blocksShared;
+
+  /**
+   * Count of the BasicBlocks of the family which belong to the other shards of the model; they are counted in the
+   * total of the family but not kept
+   */
+  private int countOfOtherBasicBlocks;
+
+  /**
+   * TermFrequencyRatio of the BasicBlocks by position
+   */
+  private double[] termFrequencyRatios;
+
+  /**
+   * DistributionTermFrequency of the BasicBlocks by position
+   */
+  private double[] distributionTermFrequencies;
+
+  /**
+   * Malware distribution frequency of the BasicBlocks by position
+   */
+  private double[] mdfs;
+
+  /**
+   * Family classifier of the BasicBlocks by position
+   */
+  private double[] fcs;
+
+  /**
+   * Metric columns which are shared with the family this family is copied from; they are copied before they are written
+   */
+  private final EnumSet<Metric> sharedMetrics = EnumSet.noneOf(Metric.class);
+
+  /**
+   * Positions of the BasicBlocks from the greatest DistributionTermFrequency down; null until it is needed and
+   * after the metrics change
    */
-  private final HashMap<String, BasicBlock> basicBlocks;
+  private volatile int[] distributionTermFrequencyRanking;
   
   /**
    * HashMap to keep all the Malware of the family
@@ -27,29 +91,82 @@ public class Family {
   private final HashMap<String, Malware> malwares;
 
   /**
-   * Constructor which takes family name is the only parameter
+   * Constructor which takes family name is the only parameter. The family has its own dictionary.
    * @param name 
    */
   public Family(String name) {
-    basicBlocks = new HashMap<>();
+    this(name, new BlockDictionary());
+  }
+
+  /**
+   * Constructor which takes family name and the dictionary of the hashes of the BasicBlocks
+   * @param name 
+   * @param dictionary 
+   */
+  public Family(String name, BlockDictionary dictionary) {
+    this(name, dictionary, new BlockCounts());
+  }
+
+  /**
+   * Constructor which takes the BasicBlocks of the family, e.g. read from a snapshot
+   * @param name 
+   * @param dictionary 
+   * @param blocks 
+   */
+  public Family(String name, BlockDictionary dictionary, BlockCounts blocks) {
+    this.blocks = blocks;
+    allocateMetrics(blocks.isFrozen() ? blocks.size() : 0);
     malwares = new HashMap<>();
     this.name = name;
+    this.dictionary = dictionary;
   }
 
   /**
-   * Count of all BasicBlocks in the family
+   * Constructor which takes the frozen BasicBlocks of the family and their metric columns which are already calculated, 
+   * e.g. read from a snapshot. Each column is by position.
+   * @param name 
+   * @param dictionary 
+   * @param blocks 
+   * @param termFrequencyRatios
+   * @param distributionTermFrequencies
+   * @param mdfs
+   * @param fcs 
+   */
+  public Family(String name, BlockDictionary dictionary, BlockCounts blocks, double[] termFrequencyRatios, double[] distributionTermFrequencies,
+          double[] mdfs, double[] fcs) {
+    this.blocks = blocks;
+    this.termFrequencyRatios = termFrequencyRatios;
+    this.distributionTermFrequencies = distributionTermFrequencies;
+    this.mdfs = mdfs;
+    this.fcs = fcs;
+    malwares = new HashMap<>();
+    this.name = name;
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * Count of all BasicBlocks in the family, including the BasicBlocks of the other shards
    * @return 
    */
   public int countOfBasicBlocks() {
-    int result = 0;
-    Iterator<Map.Entry<String, BasicBlock>> iterator = basicBlocks.entrySet().iterator();
+    return blocks.total() + countOfOtherBasicBlocks;
+  }
 
-    while (iterator.hasNext()) {
-      int count = iterator.next().getValue().getCount();
-      result += count;
-    }
+  /**
+   * Counts BasicBlocks of the family which belong to the other shards of the model, so the TermFrequencyRatio of
+   * the BasicBlocks of this shard is the same as in the whole model
+   * @param count 
+   */
+  public void addOtherBasicBlocks(int count) {
+    countOfOtherBasicBlocks += count;
+  }
 
-    return result;
+  /**
+   * 
+   * @return count of the distinguished BasicBlocks in the family
+   */
+  public int countOfDistinctBasicBlocks() {
+    return blocks.size();
   }
 
   /**
@@ -71,20 +188,229 @@ public class Family {
 
   /**
    * 
-   * @return basicBlocks 
+   * @return id 
+   */
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * 
+   * @param id 
+   */
+  public void setId(int id) {
+    this.id = id;
+  }
+
+  /**
+   * 
+   * @return dictionary 
+   */
+  public BlockDictionary getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   * 
+   * @return views of the basicBlocks in the order of their ids
+   */
+  public List<BasicBlock> getBasicBlocks() {
+    freeze();
+
+    return new AbstractList<BasicBlock>() {
+      @Override
+      public BasicBlock get(int index) {
+        return new BasicBlock(Family.this, index);
+      }
+
+      @Override
+      public int size() {
+        return blocks.size();
+      }
+    };
+  }
+
+  /**
+   * 
+   * @return ids and counts of the BasicBlocks
+   */
+  public BlockCounts getBlockCounts() {
+    freeze();
+    return blocks;
+  }
+
+  /**
+   * Column of TermFrequencyRatio by position. Only the first {@link #countOfDistinctBasicBlocks()} elements are valid.
+   * @return termFrequencyRatios
+   */
+  public double[] getTermFrequencyRatios() {
+    freeze();
+    return termFrequencyRatios;
+  }
+
+  /**
+   * Column of DistributionTermFrequency by position. Only the first {@link #countOfDistinctBasicBlocks()} elements are valid.
+   * @return distributionTermFrequencies
+   */
+  public double[] getDistributionTermFrequencies() {
+    freeze();
+    return distributionTermFrequencies;
+  }
+
+  /**
+   * Column of MDF by position. Only the first {@link #countOfDistinctBasicBlocks()} elements are valid.
+   * @return mdfs
+   */
+  public double[] getMDFs() {
+    freeze();
+    return mdfs;
+  }
+
+  /**
+   * Column of FC by position. Only the first {@link #countOfDistinctBasicBlocks()} elements are valid.
+   * @return fcs
+   */
+  public double[] getFCs() {
+    freeze();
+    return fcs;
+  }
+
+  /**
+   * Copies the given metric columns if they are shared with the family this family is copied from, so they may be 
+   * written without changing that family. It must be called before the columns are written, and not by many threads at once.
+   * @param metrics 
+   */
+  public void ownMetrics(Metric... metrics) {
+    freeze();
+    int size = blocks.size();
+
+    for (Metric metric : metrics) {
+      if (!sharedMetrics.remove(metric)) {
+        continue;
+      }
+
+      switch (metric) {
+        case TFR:
+          termFrequencyRatios = Arrays.copyOf(termFrequencyRatios, size);
+          break;
+        case TFD:
+          distributionTermFrequencies = Arrays.copyOf(distributionTermFrequencies, size);
+          break;
+        case MDF:
+          mdfs = Arrays.copyOf(mdfs, size);
+          break;
+        case FC:
+          fcs = Arrays.copyOf(fcs, size);
+          break;
+      }
+    }
+  }
+
+  /**
+   * Drops the cached rankings of the BasicBlocks. It must be called whenever the metric columns are written.
+   */
+  public void metricsChanged() {
+    distributionTermFrequencyRanking = null;
+  }
+
+  /**
+   * Positions of all BasicBlocks from the greatest DistributionTermFrequency down. It is sorted once and cached
+   * until the metrics change.
+   * @return positions; must not be changed
+   */
+  public int[] rankByDistributionTermFrequency() {
+    int[] result = distributionTermFrequencyRanking;
+
+    if (result == null) {
+      result = Ranking.all(getDistributionTermFrequencies(), countOfDistinctBasicBlocks());
+      distributionTermFrequencyRanking = result;
+    }
+
+    return result;
+  }
+
+  /**
+   * Positions of the top BasicBlocks by DistributionTermFrequency. The cached ranking is used if there is one,
+   * otherwise only the top positions are selected.
+   * @param count
+   * @return positions from the greatest DistributionTermFrequency down; at most count
+   */
+  public int[] topByDistributionTermFrequency(int count) {
+    int[] ranking = distributionTermFrequencyRanking;
+    int size = countOfDistinctBasicBlocks();
+
+    if (ranking != null) {
+      return Arrays.copyOf(ranking, Math.max(0, Math.min(count, size)));
+    }
+
+    return Ranking.top(getDistributionTermFrequencies(), size, count);
+  }
+
+  /**
+   * 
+   * @param position
+   * @return id of the BasicBlock at the given position
+   */
+  public int getBlockId(int position) {
+    return blocks.getId(position);
+  }
+
+  /**
+   * 
+   * @param position
+   * @return count of the BasicBlock at the given position
+   */
+  public int getCount(int position) {
+    return blocks.getCount(position);
+  }
+
+  /**
+   * 
+   * @param position
+   * @return BasicBlock at the given position
    */
-  public HashMap<String, BasicBlock> getBasicBlocks() {
-    return basicBlocks;
+  public BasicBlock getBasicBlock(int position) {
+    freeze();
+    return new BasicBlock(this, position);
   }
 
   /**
-   * Find a BasicBlock in the HashMap by the basicBlock code
+   * Find a BasicBlock by the basicBlock code
    * @param code
    * @return 
    */
   public BasicBlock findByCode(String code) {
-    BasicBlock basicBlock = basicBlocks.get(code);
-    return basicBlock;
+    return findByKey(BlockKey.of(code));
+  }
+
+  /**
+   * Find a BasicBlock by the binary key of the basicBlock code
+   * @param key
+   * @return 
+   */
+  public BasicBlock findByKey(BlockKey key) {
+    int blockId = dictionary.find(key);
+    return blockId < 0 ? null : findById(blockId);
+  }
+
+  /**
+   * Find a BasicBlock by its id
+   * @param blockId
+   * @return 
+   */
+  public BasicBlock findById(int blockId) {
+    int position = positionOf(blockId);
+    return position < 0 ? null : new BasicBlock(this, position);
+  }
+
+  /**
+   * 
+   * @param blockId
+   * @return position of the given BasicBlock or -1 if the family does not have it
+   */
+  public int positionOf(int blockId) {
+    freeze();
+    return blocks.indexOf(blockId);
   }
 
   /**
@@ -118,17 +444,97 @@ public class Family {
   }
 
   /**
-   * Adds the given BasicBlock to the HashMap; if it is a new BasicBlock it will be added. <br/>But if it as already added, its count will get incremented.
+   * Adds the given BasicBlock to the family; if it is a new BasicBlock it will be added. <br/>But if it as already added, its count will get incremented.
    * @param code
    * @throws Exception 
    */
   public void addBasicBlock(String code) throws Exception {
-    BasicBlock existingBB = basicBlocks.get(code);
-    if (existingBB != null) {
-      existingBB.incCound();
-    } else {
-      basicBlocks.put(code, new BasicBlock(code));
+    if (code == null || code.trim().length() == 0) {
+      throw new Exception("Code of BB is null or empty!");
     }
+
+    addBasicBlock(BlockKey.of(code));
+  }
+
+  /**
+   * Adds the given BasicBlock to the family; if it is a new BasicBlock it will be added. <br/>But if it as already added, its count will get incremented.
+   * @param key 
+   */
+  public void addBasicBlock(BlockKey key) {
+    addBasicBlock(dictionary.intern(key));
+  }
+
+  /**
+   * Adds the given BasicBlock to the family; if it is a new BasicBlock it will be added. <br/>But if it as already added, its count will get incremented.
+   * @param blockId id of the BasicBlock in the dictionary of the family
+   */
+  public void addBasicBlock(int blockId) {
+    ownBlocks().add(blockId);
+  }
+
+  /**
+   * Adds the given count of occurrences of the given BasicBlock to the family
+   * @param blockId id of the BasicBlock in the dictionary of the family
+   * @param count 
+   */
+  public void addBasicBlock(int blockId, int count) {
+    ownBlocks().add(blockId, count);
+  }
+
+  /**
+   * 
+   * @return blocks which are not shared with another family, so they may be changed
+   */
+  private BlockCounts ownBlocks() {
+    if (blocksShared) {
+      blocks = blocks.copy();
+      blocksShared = false;
+    }
+
+    return blocks;
+  }
+
+  /**
+   * Copies the family, e.g. for the next version of the model. The copy has its own map of malware, so malware may be 
+   * added to it without changing this family. The frozen blocks are shared until BasicBlocks are added to the copy, and 
+   * the metric columns until {@link #ownMetrics(Metric...)} is called; the malware themselves are shared.
+   * @return copy of the family with the same id
+   */
+  public Family copy() {
+    freeze();
+    Family result = new Family(name, dictionary, blocks, termFrequencyRatios, distributionTermFrequencies, mdfs, fcs);
+
+    result.blocksShared = true;
+    result.sharedMetrics.addAll(EnumSet.allOf(Metric.class));
+    result.id = id;
+    result.countOfOtherBasicBlocks = countOfOtherBasicBlocks;
+    result.malwares.putAll(malwares);
+    result.distributionTermFrequencyRanking = distributionTermFrequencyRanking;
+    return result;
+  }
+
+  /**
+   * Sorts the BasicBlocks by id and allocates their metric columns. It is done automatically when they are accessed.
+   * <br/>Adding BasicBlocks moves them, so the metrics should be calculated again afterwards.
+   */
+  public void freeze() {
+    if (!blocks.isFrozen()) {
+      blocks.freeze();
+      allocateMetrics(blocks.size());
+    }
+  }
+
+  /**
+   * Allocates the metric columns
+   * @param size 
+   */
+  private void allocateMetrics(int size) {
+    termFrequencyRatios = new double[size];
+    distributionTermFrequencies = new double[size];
+    mdfs = new double[size];
+    fcs = new double[size];
+    sharedMetrics.clear();
+    metricsChanged();
   }
   
   /**
@@ -0,0 +1,196 @@
+package vida.phd.tfd.entity;
+
+import vida.phd.tfd.index.BlockDictionary;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accumulates the BasicBlocks and Malware of one family from many threads at once, e.g. while its files are loaded
+ * in parallel, and turns them into a frozen Family at the end.
+ * <br/>The counts are split into stripes by block id, each with its own lock, so threads which add different
+ * malware of the same family rarely wait for each other. A malware is read into its own blocks first; then its blocks
+ * are grouped by stripe and each stripe is locked only once for the whole malware.
+ * <br/>The stripes have disjoint block ids, so building the family only concatenates them and sorts by id once.
+ * @author Vida
+ */
+public class FamilyBuilder {
+
+  /**
+   * Default count of the stripes
+   */
+  private static final int STRIPES = 64;
+
+  /**
+   * Name of the family
+   */
+  private final String name;
+
+  /**
+   * Dictionary of the hashes of the BasicBlocks
+   */
+  private final BlockDictionary dictionary;
+
+  /**
+   * Counts of the BasicBlocks by stripe; each stripe is its own lock
+   */
+  private final BlockCounts[] stripes;
+
+  /**
+   * Count of the stripes minus one; the count of the stripes is always a power of two
+   */
+  private final int mask;
+
+  /**
+   * Count of the BasicBlocks of the family which belong to the other shards of the model
+   */
+  private final AtomicInteger countOfOtherBasicBlocks;
+
+  /**
+   * Malware of the family by name
+   */
+  private final ConcurrentHashMap<String, Malware> malwares;
+
+  /**
+   * Constructor which takes family name and the dictionary of the hashes of the BasicBlocks
+   * @param name
+   * @param dictionary
+   */
+  public FamilyBuilder(String name, BlockDictionary dictionary) {
+    this(name, dictionary, STRIPES);
+  }
+
+  /**
+   * Constructor which takes family name, the dictionary and the count of the stripes
+   * @param name
+   * @param dictionary
+   * @param stripes rounded up to a power of two
+   */
+  public FamilyBuilder(String name, BlockDictionary dictionary, int stripes) {
+    int count = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+
+    this.name = name;
+    this.dictionary = dictionary;
+    this.stripes = new BlockCounts[count];
+    this.mask = count - 1;
+    this.malwares = new ConcurrentHashMap<>();
+    this.countOfOtherBasicBlocks = new AtomicInteger();
+
+    for (int i = 0; i < count; i++) {
+      this.stripes[i] = new BlockCounts();
+    }
+  }
+
+  /**
+   * Adds the given Malware and its BasicBlocks to the family. It may be called by many threads at once.
+   * <br/>Its family is set when the family is built.
+   * @param malware whose BasicBlocks are interned in the dictionary of the family
+   * @throws Exception if a Malware with the same name is already added
+   */
+  public void addMalware(Malware malware) throws Exception {
+    if (malwares.putIfAbsent(malware.getName(), malware) != null) {
+      throw new Exception("Malware " + malware.getName() + " already exists.");
+    }
+
+    addBasicBlocks(malware.getBasicBlocks());
+  }
+
+  /**
+   * Adds the given BasicBlocks to the family. It may be called by many threads at once.
+   * @param blocks
+   */
+  public void addBasicBlocks(BlockCounts blocks) {
+    int size = blocks.size();
+    int[] starts = new int[stripes.length + 1];
+
+    for (int i = 0; i < size; i++) {
+      starts[stripeOf(blocks.getId(i)) + 1]++;
+    }
+    for (int s = 0; s < stripes.length; s++) {
+      starts[s + 1] += starts[s];
+    }
+
+    int[] next = Arrays.copyOf(starts, stripes.length);
+    int[] positions = new int[size];
+    for (int i = 0; i < size; i++) {
+      positions[next[stripeOf(blocks.getId(i))]++] = i;
+    }
+
+    for (int s = 0; s < stripes.length; s++) {
+      if (starts[s] < starts[s + 1]) {
+        BlockCounts stripe = stripes[s];
+
+        synchronized (stripe) {
+          for (int p = starts[s]; p < starts[s + 1]; p++) {
+            stripe.add(blocks.getId(positions[p]), blocks.getCount(positions[p]));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts BasicBlocks of the family which belong to the other shards of the model. It may be called by many threads at once.
+   * @param count
+   */
+  public void addOtherBasicBlocks(int count) {
+    countOfOtherBasicBlocks.addAndGet(count);
+  }
+
+  /**
+   * Builds the frozen family of the added BasicBlocks and Malware. It must be called after all threads are done;
+   * the builder should not be used afterwards.
+   * @return family
+   * @throws Exception if a Malware can not be added to the family
+   */
+  public Family build() throws Exception {
+    int size = 0;
+    for (BlockCounts stripe : stripes) {
+      size += stripe.size();
+    }
+
+    long[] packed = new long[size];
+    int position = 0;
+    for (BlockCounts stripe : stripes) {
+      for (int i = 0; i < stripe.size(); i++) {
+        packed[position++] = ((long) stripe.getId(i) << 32) | (stripe.getCount(i) & 0xffffffffL);
+      }
+    }
+    Arrays.sort(packed);
+
+    int[] ids = new int[size];
+    int[] counts = new int[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = (int) (packed[i] >>> 32);
+      counts[i] = (int) packed[i];
+    }
+
+    Family result = new Family(name, dictionary, new BlockCounts(ids, counts));
+    result.addOtherBasicBlocks(countOfOtherBasicBlocks.get());
+    for (Malware malware : malwares.values()) {
+      malware.setFamily(result);
+      result.addMalware(malware);
+    }
+
+    return result;
+  }
+
+  /**
+   *
+   * @return name of the family
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   *
+   * @param blockId
+   * @return stripe of the given block id; the id is mixed so consecutive ids spread over the stripes
+   */
+  private int stripeOf(int blockId) {
+    int hash = blockId * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+}
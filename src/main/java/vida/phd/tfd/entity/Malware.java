@@ -1,6 +1,5 @@
 package vida.phd.tfd.entity;
 
-import java.util.HashMap;
 import java.util.Objects;
 
 /**
@@ -18,11 +17,11 @@ public class Malware {
    * Name of Malware which is the name of the file which malware has been loaded from
    */
   private final String name;
-  
+
   /**
-   * HashMap to keep all BasicBlocks of this Malware
+   * Ids and counts of all BasicBlocks of this Malware
    */
-  private final HashMap<String, BasicBlock> basicBlocks;
+  private final BlockCounts blocks;
 
   /**
    * Constructor which takes Malware name and the Family as the parameters
@@ -30,8 +29,18 @@ public class Malware {
    * @param family 
    */
   public Malware(String name, Family family) {
+    this(name, family, new BlockCounts());
+  }
+
+  /**
+   * Constructor which takes the BasicBlocks of the Malware, e.g. read from a snapshot
+   * @param name
+   * @param family 
+   * @param blocks 
+   */
+  public Malware(String name, Family family, BlockCounts blocks) {
     this.name = name;
-    basicBlocks = new HashMap<>();
+    this.blocks = blocks;
     this.family = family;
   }
 
@@ -44,17 +53,48 @@ public class Malware {
   }
 
   /**
-   * Adds the given BasicBlock to the HashMap; if it is a new BasicBlock it will be added. <br/>But if it as already added, its count will get incremented.
+   * Adds the given BasicBlock to the malware; if it is a new BasicBlock it will be added. <br/>But if it as already added, its count will get incremented.
    * @param code
    * @throws Exception 
    */
   public void addBasicBlock(String code) throws Exception {
-    BasicBlock existingBB = basicBlocks.get(code);
-    if (existingBB != null) {
-      existingBB.incCound();
-    } else {
-      basicBlocks.put(code, new BasicBlock(code));
+    if (code == null || code.trim().length() == 0) {
+      throw new Exception("Code of BB is null or empty!");
     }
+
+    addBasicBlock(BlockKey.of(code));
+  }
+
+  /**
+   * Adds the given BasicBlock to the malware; if it is a new BasicBlock it will be added. <br/>But if it as already added, its count will get incremented.
+   * @param key 
+   */
+  public void addBasicBlock(BlockKey key) {
+    addBasicBlock(family.getDictionary().intern(key));
+  }
+
+  /**
+   * Adds the given BasicBlock to the malware; if it is a new BasicBlock it will be added. <br/>But if it as already added, its count will get incremented.
+   * @param blockId id of the BasicBlock in the dictionary of the family
+   */
+  public void addBasicBlock(int blockId) {
+    blocks.add(blockId);
+  }
+
+  /**
+   * Adds the given count of occurrences of the given BasicBlock to the malware
+   * @param blockId id of the BasicBlock in the dictionary of the family
+   * @param count 
+   */
+  public void addBasicBlock(int blockId, int count) {
+    blocks.add(blockId, count);
+  }
+
+  /**
+   * Sorts the BasicBlocks by id and releases the memory which is only needed while adding them
+   */
+  public void freeze() {
+    blocks.freeze();
   }
 
   /**
@@ -84,10 +124,19 @@ public class Malware {
 
   /**
    * 
-   * @return BasicBlocks
+   * @return ids and counts of the BasicBlocks
+   */
+  public BlockCounts getBasicBlocks() {
+    return blocks;
+  }
+
+  /**
+   * 
+   * @param blockId
+   * @return true if the malware has the given BasicBlock
    */
-  public HashMap<String, BasicBlock> getBasicBlocks() {
-    return basicBlocks;
+  public boolean contains(int blockId) {
+    return blocks.indexOf(blockId) >= 0;
   }
 
   /**
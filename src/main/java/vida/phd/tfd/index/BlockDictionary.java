@@ -0,0 +1,123 @@
+package vida.phd.tfd.index;
+
+import vida.phd.tfd.entity.BlockKey;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global dictionary of the BasicBlock hashes. Each distinct hash gets a dense int id, in the order it is first seen,
+ * so families and malware keep int ids instead of their own copies of the hashes.
+ * <br/>Interning is thread safe, so the families can be loaded concurrently.
+ * @author Vida
+ */
+public class BlockDictionary {
+
+  /**
+   * Ids by the keys
+   */
+  private final ConcurrentHashMap<BlockKey, Integer> ids;
+
+  /**
+   * Keys by their ids
+   */
+  private volatile BlockKey[] keys;
+
+  /**
+   * Count of the keys
+   */
+  private volatile int size;
+
+  /**
+   * Default constructor
+   */
+  public BlockDictionary() {
+    ids = new ConcurrentHashMap<>();
+    keys = new BlockKey[1024];
+  }
+
+  /**
+   * Returns the id of the given key; a new key gets the next id.
+   * @param key
+   * @return id
+   */
+  public int intern(BlockKey key) {
+    Integer id = ids.get(key);
+
+    if (id == null) {
+      synchronized (this) {
+        id = ids.get(key);
+
+        if (id == null) {
+          if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+          }
+
+          id = size;
+          keys[size] = key;
+          ids.put(key, id);
+          size++;
+        }
+      }
+    }
+
+    return id;
+  }
+
+  /**
+   * Returns the id of the decoded hash of the given probe; a new hash gets the next id. 
+   * <br/>A known hash is found without any allocation.
+   * @param probe
+   * @return id
+   */
+  public int intern(BlockKey.Probe probe) {
+    Integer id = ids.get(probe);
+    return id != null ? id : intern(probe.toKey());
+  }
+
+  /**
+   * 
+   * @param probe
+   * @return id of the decoded hash of the given probe or -1 if it is not in the dictionary
+   */
+  public int find(BlockKey.Probe probe) {
+    Integer id = ids.get(probe);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * 
+   * @param key
+   * @return id of the given key or -1 if the key is not in the dictionary
+   */
+  public int find(BlockKey key) {
+    Integer id = ids.get(key);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * 
+   * @param id
+   * @return key by its id
+   */
+  public BlockKey getKey(int id) {
+    return keys[id];
+  }
+
+  /**
+   * Removes all keys; the memory of the dictionary is kept to be reused. It must not be used concurrently.
+   */
+  public synchronized void clear() {
+    ids.clear();
+    Arrays.fill(keys, 0, size, null);
+    size = 0;
+  }
+
+  /**
+   * 
+   * @return count of the keys
+   */
+  public int size() {
+    return size;
+  }
+}
@@ -0,0 +1,317 @@
+package vida.phd.tfd.index;
+
+import vida.phd.tfd.entity.BasicBlock;
+import vida.phd.tfd.entity.BlockCounts;
+import vida.phd.tfd.entity.BlockKey;
+import vida.phd.tfd.entity.Family;
+import vida.phd.tfd.entity.Malware;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Inverted index from the id of a BasicBlock to the Postings of the families which have it.
+ * <br/>It is built once after the families are loaded, so every lookup of a BasicBlock is a single hash probe. When malware
+ * are added to families, the next index copies and patches only the Postings of their BasicBlocks and shares the others.
+ * <br/>Malware get ids family by family in the order of their names when the index is built, and added malware get the next
+ * ids. The ids are kept only in the index, as the malware are shared by the versions of the model.
+ * @author Vida
+ */
+public class BlockIndex {
+
+  /**
+   * Families by their ids
+   */
+  private final Family[] families;
+
+  /**
+   * Malware by their ids
+   */
+  private final Malware[] malwares;
+
+  /**
+   * Dictionary of the hashes of the BasicBlocks
+   */
+  private final BlockDictionary dictionary;
+
+  /**
+   * Postings by the BasicBlock id
+   */
+  private final Postings[] postings;
+
+  /**
+   * Count of the BasicBlocks which have postings
+   */
+  private int size;
+
+  /**
+   * Constructor which takes the families by their ids and the dictionary of their BasicBlocks
+   * @param families 
+   * @param dictionary 
+   */
+  private BlockIndex(Family[] families, BlockDictionary dictionary) {
+    this.families = families;
+    this.dictionary = dictionary;
+    this.postings = new Postings[dictionary.size()];
+
+    int countOfMalwares = 0;
+    for (Family family : families) {
+      countOfMalwares += family.getMalwares().size();
+    }
+    this.malwares = new Malware[countOfMalwares];
+  }
+
+  /**
+   * Constructor which takes all fields
+   * @param families 
+   * @param dictionary 
+   * @param postings 
+   * @param malwares 
+   */
+  private BlockIndex(Family[] families, BlockDictionary dictionary, Postings[] postings, Malware[] malwares) {
+    this.families = families;
+    this.dictionary = dictionary;
+    this.postings = postings;
+    this.malwares = malwares;
+  }
+
+  /**
+   * Builds the index of the given families. Id of each family must be its index in the array.
+   * @param families
+   * @param dictionary of the BasicBlocks of the families
+   * @return BlockIndex
+   */
+  public static BlockIndex build(Family[] families, BlockDictionary dictionary) {
+    BlockIndex index = new BlockIndex(families, dictionary);
+
+    for (Family family : families) {
+      BlockCounts blocks = family.getBlockCounts();
+      int[] ids = blocks.getIds();
+
+      for (int i = 0; i < blocks.size(); i++) {
+        Postings list = index.postings[ids[i]];
+
+        if (list == null) {
+          list = new Postings();
+          index.postings[ids[i]] = list;
+          index.size++;
+        }
+
+        list.add(family.getId(), i);
+      }
+    }
+
+    int malwareId = 0;
+    for (Family family : families) {
+      List<String> names = new ArrayList<>(family.getMalwares().keySet());
+      Collections.sort(names);
+
+      for (String name : names) {
+        Malware malware = family.getMalwares().get(name);
+        index.malwares[malwareId] = malware;
+
+        BlockCounts blocks = malware.getBasicBlocks();
+        for (int i = 0; i < blocks.size(); i++) {
+          Postings list = index.postings[blocks.getId(i)];
+          if (list != null) {
+            list.addMalware(family.getId(), malwareId);
+          }
+        }
+
+        malwareId++;
+      }
+    }
+    for (Postings list : index.postings) {
+      if (list != null) {
+        list.trim();
+      }
+    }
+
+    return index;
+  }
+
+  /**
+   * Index of the given copies of the families of this index, e.g. for the next version of the model. The copies must 
+   * have the same ids and BasicBlocks as the families they are copied from, so the Postings are shared.
+   * @param copies families by their ids
+   * @return BlockIndex
+   */
+  public BlockIndex withFamilies(Family[] copies) {
+    BlockIndex index = new BlockIndex(copies, dictionary, postings, malwares);
+    index.size = size;
+    return index;
+  }
+
+  /**
+   * Index of the next version of the model, after the given malware are added to the changed families. Only the Postings 
+   * of the BasicBlocks which are new or moved in a changed family, or which an added malware has, are copied and patched;
+   * the other Postings are shared with this index.
+   * @param families by their ids, including the changed families; the ids must be the same as in this index
+   * @param changed families which the malware are added to
+   * @param added malware, which BasicBlocks are interned in the dictionary of the index
+   * @return BlockIndex
+   */
+  public BlockIndex update(Family[] families, Family[] changed, List<Malware> added) {
+    BlockIndex index = new BlockIndex(families, dictionary, Arrays.copyOf(postings, dictionary.size()), 
+            Arrays.copyOf(malwares, malwares.length + added.size()));
+    List<Postings> patched = new ArrayList<>();
+    index.size = size;
+
+    for (Family family : changed) {
+      BlockCounts blocks = family.getBlockCounts();
+      int[] ids = blocks.getIds();
+
+      for (int i = 0; i < blocks.size(); i++) {
+        Postings list = index.postings[ids[i]];
+
+        if (list == null || list.findByFamily(family.getId()) != i) {
+          index.patch(ids[i], postings, patched).set(family.getId(), i);
+        }
+      }
+    }
+
+    int malwareId = malwares.length;
+    for (Malware malware : added) {
+      index.malwares[malwareId] = malware;
+
+      BlockCounts blocks = malware.getBasicBlocks();
+      for (int i = 0; i < blocks.size(); i++) {
+        if (index.postings[blocks.getId(i)] != null) {
+          index.patch(blocks.getId(i), postings, patched).addMalware(malware.getFamily().getId(), malwareId);
+        }
+      }
+
+      malwareId++;
+    }
+
+    for (Postings list : patched) {
+      list.trim();
+    }
+
+    return index;
+  }
+
+  /**
+   * Postings of the given BasicBlock which may be changed: a copy if they are shared with the previous index, or new 
+   * Postings if there are none yet
+   * @param blockId
+   * @param previous Postings of the previous index by BasicBlock id
+   * @param patched Postings which are already copied or created for this index
+   * @return Postings
+   */
+  private Postings patch(int blockId, Postings[] previous, List<Postings> patched) {
+    Postings list = postings[blockId];
+
+    if (list == null) {
+      list = new Postings();
+      size++;
+    } else if (blockId < previous.length && list == previous[blockId]) {
+      list = list.copy();
+    } else {
+      return list;
+    }
+
+    postings[blockId] = list;
+    patched.add(list);
+    return list;
+  }
+
+  /**
+   * 
+   * @param code
+   * @return Postings of the given BasicBlock code or null if no family has it
+   */
+  public Postings get(String code) {
+    return get(BlockKey.of(code));
+  }
+
+  /**
+   * 
+   * @param key
+   * @return Postings of the given BasicBlock key or null if no family has it
+   */
+  public Postings get(BlockKey key) {
+    return get(dictionary.find(key));
+  }
+
+  /**
+   * 
+   * @param blockId
+   * @return Postings of the given BasicBlock id or null if no family has it
+   */
+  public Postings get(int blockId) {
+    return blockId >= 0 && blockId < postings.length ? postings[blockId] : null;
+  }
+
+  /**
+   * 
+   * @return dictionary of the BasicBlocks
+   */
+  public BlockDictionary getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   * 
+   * @param id
+   * @return Family by its id
+   */
+  public Family getFamily(int id) {
+    return families[id];
+  }
+
+  /**
+   * 
+   * @param postings
+   * @param index
+   * @return BasicBlock of the given posting
+   */
+  public BasicBlock getBasicBlock(Postings postings, int index) {
+    return families[postings.getFamilyId(index)].getBasicBlock(postings.getPosition(index));
+  }
+
+  /**
+   * 
+   * @param id
+   * @return Malware by its id
+   */
+  public Malware getMalware(int id) {
+    return malwares[id];
+  }
+
+  /**
+   * Count of the malware of the given family which have the BasicBlock of the given Postings
+   * @param postings
+   * @param familyId
+   * @return 
+   */
+  public int countOfMalwaresInFamily(Postings postings, int familyId) {
+    return postings.countOfMalwaresInFamily(familyId);
+  }
+
+  /**
+   * 
+   * @return families by their ids; the array must not be modified
+   */
+  public Family[] getFamilies() {
+    return families;
+  }
+
+  /**
+   * 
+   * @return count of the families
+   */
+  public int countOfFamilies() {
+    return families.length;
+  }
+
+  /**
+   * 
+   * @return count of the distinguished BasicBlocks
+   */
+  public int size() {
+    return size;
+  }
+}
@@ -0,0 +1,223 @@
+package vida.phd.tfd.index;
+
+import java.util.Arrays;
+
+/**
+ * Posting list of one BasicBlock. Keeps the ids of the families which have the BasicBlock, sorted by id, 
+ * together with the position of the BasicBlock in each family, where its count, TFR, TFD, MDF and FC are kept.
+ * <br/>It also keeps the ids of all malware which have the BasicBlock, sorted by id, and how many of them are in each family.
+ * <br/>A Postings is shared by the versions of the model until it is changed; the next version changes a copy of it.
+ * @author Vida
+ */
+public class Postings {
+
+  /**
+   * Ids of the families
+   */
+  private int[] familyIds;
+
+  /**
+   * Position of the BasicBlock in each family, parallel to familyIds
+   */
+  private int[] positions;
+
+  /**
+   * Count of the malware of each family which have the BasicBlock, parallel to familyIds
+   */
+  private int[] malwareCounts;
+
+  /**
+   * Count of the postings
+   */
+  private int size;
+
+  /**
+   * Ids of the malware
+   */
+  private int[] malwareIds;
+
+  /**
+   * Count of the malware ids
+   */
+  private int malwareSize;
+
+  /**
+   * Default constructor
+   */
+  public Postings() {
+    familyIds = new int[1];
+    positions = new int[1];
+    malwareCounts = new int[1];
+    malwareIds = new int[1];
+  }
+
+  /**
+   * Constructor which takes all fields
+   * @param familyIds
+   * @param positions
+   * @param malwareCounts
+   * @param size
+   * @param malwareIds
+   * @param malwareSize 
+   */
+  private Postings(int[] familyIds, int[] positions, int[] malwareCounts, int size, int[] malwareIds, int malwareSize) {
+    this.familyIds = familyIds;
+    this.positions = positions;
+    this.malwareCounts = malwareCounts;
+    this.size = size;
+    this.malwareIds = malwareIds;
+    this.malwareSize = malwareSize;
+  }
+
+  /**
+   * 
+   * @return copy of the postings which does not share its arrays with these postings
+   */
+  Postings copy() {
+    return new Postings(Arrays.copyOf(familyIds, size), Arrays.copyOf(positions, size), Arrays.copyOf(malwareCounts, size), size,
+            Arrays.copyOf(malwareIds, malwareSize), malwareSize);
+  }
+
+  /**
+   * Adds a posting. Postings should be added in ascending order of family ids.
+   * @param familyId
+   * @param position 
+   */
+  void add(int familyId, int position) {
+    if (size == familyIds.length) {
+      grow(Math.max(1, size * 2));
+    }
+
+    familyIds[size] = familyId;
+    positions[size] = position;
+    size++;
+  }
+
+  /**
+   * Sets the position of the BasicBlock in the given family, e.g. after BasicBlocks are added to the family. The posting 
+   * of the family is inserted in the order of family ids if there is none yet.
+   * @param familyId
+   * @param position 
+   */
+  void set(int familyId, int position) {
+    int index = Arrays.binarySearch(familyIds, 0, size, familyId);
+
+    if (index >= 0) {
+      positions[index] = position;
+      return;
+    }
+
+    index = -index - 1;
+    if (size == familyIds.length) {
+      grow(Math.max(1, size * 2));
+    }
+
+    System.arraycopy(familyIds, index, familyIds, index + 1, size - index);
+    System.arraycopy(positions, index, positions, index + 1, size - index);
+    System.arraycopy(malwareCounts, index, malwareCounts, index + 1, size - index);
+    familyIds[index] = familyId;
+    positions[index] = position;
+    malwareCounts[index] = 0;
+    size++;
+  }
+
+  /**
+   * Adds a malware of the given family, which must have a posting. Malware should be added in ascending order of their ids.
+   * @param familyId
+   * @param malwareId 
+   */
+  void addMalware(int familyId, int malwareId) {
+    if (malwareSize == malwareIds.length) {
+      malwareIds = Arrays.copyOf(malwareIds, Math.max(1, malwareSize * 2));
+    }
+
+    malwareIds[malwareSize++] = malwareId;
+    malwareCounts[Arrays.binarySearch(familyIds, 0, size, familyId)]++;
+  }
+
+  /**
+   * Grows the arrays of the postings to the given capacity
+   * @param capacity 
+   */
+  private void grow(int capacity) {
+    familyIds = Arrays.copyOf(familyIds, capacity);
+    positions = Arrays.copyOf(positions, capacity);
+    malwareCounts = Arrays.copyOf(malwareCounts, capacity);
+  }
+
+  /**
+   * Releases the unused capacity
+   */
+  void trim() {
+    if (size < familyIds.length) {
+      grow(size);
+    }
+
+    if (malwareSize < malwareIds.length) {
+      malwareIds = Arrays.copyOf(malwareIds, malwareSize);
+    }
+  }
+
+  /**
+   * 
+   * @return count of the families which have the BasicBlock
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * 
+   * @param index
+   * @return id of the family of the posting
+   */
+  public int getFamilyId(int index) {
+    return familyIds[index];
+  }
+
+  /**
+   * 
+   * @param index
+   * @return position of the BasicBlock in the family of the posting
+   */
+  public int getPosition(int index) {
+    return positions[index];
+  }
+
+  /**
+   * Finds the position of the BasicBlock in the given family
+   * @param familyId
+   * @return position or -1 if the family does not have it
+   */
+  public int findByFamily(int familyId) {
+    int index = Arrays.binarySearch(familyIds, 0, size, familyId);
+    return index >= 0 ? positions[index] : -1;
+  }
+
+  /**
+   * 
+   * @return count of the malware which have the BasicBlock
+   */
+  public int countOfMalwares() {
+    return malwareSize;
+  }
+
+  /**
+   * 
+   * @param index
+   * @return id of the malware
+   */
+  public int getMalwareId(int index) {
+    return malwareIds[index];
+  }
+
+  /**
+   * Count of the malware of the given family which have the BasicBlock
+   * @param familyId
+   * @return 
+   */
+  public int countOfMalwaresInFamily(int familyId) {
+    int index = Arrays.binarySearch(familyIds, 0, size, familyId);
+    return index >= 0 ? malwareCounts[index] : 0;
+  }
+}
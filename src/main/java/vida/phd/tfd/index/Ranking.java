@@ -0,0 +1,130 @@
+package vida.phd.tfd.index;
+
+/**
+ * Ranks the positions of a metric column from the greatest value down, without boxing and without sorting the
+ * whole column when only the top positions are needed.
+ * <br/>The top positions are selected by a bounded min-heap of positions, so it takes O(n log k) time and O(k) memory.
+ * Among equal values the greater position comes first, the same as reversing a stable ascending sort.
+ * @author Vida
+ */
+public final class Ranking {
+
+  /**
+   * Only static methods
+   */
+  private Ranking() {
+  }
+
+  /**
+   * Finds the top positions of the given column
+   * @param values column by position
+   * @param size count of the valid positions of the column
+   * @param count count of the top positions
+   * @return positions of the greatest values, from the greatest down; at most count
+   */
+  public static int[] top(double[] values, int size, int count) {
+    int k = Math.max(0, Math.min(count, size));
+    int[] heap = new int[k];
+
+    if (k == 0) {
+      return heap;
+    }
+
+    for (int position = 0; position < k; position++) {
+      heap[position] = position;
+      siftUp(values, heap, position);
+    }
+
+    for (int position = k; position < size; position++) {
+      if (isBefore(values, position, heap[0])) {
+        heap[0] = position;
+        siftDown(values, heap, k);
+      }
+    }
+
+    for (int last = k - 1; last > 0; last--) {
+      int worst = heap[0];
+      heap[0] = heap[last];
+      heap[last] = worst;
+      siftDown(values, heap, last);
+    }
+
+    return heap;
+  }
+
+  /**
+   * Ranks all positions of the given column
+   * @param values column by position
+   * @param size count of the valid positions of the column
+   * @return all positions, from the greatest value down
+   */
+  public static int[] all(double[] values, int size) {
+    return top(values, size, size);
+  }
+
+  /**
+   *
+   * @param values
+   * @param a position
+   * @param b position
+   * @return true if position a is ranked before position b
+   */
+  private static boolean isBefore(double[] values, int a, int b) {
+    return values[a] > values[b] || (values[a] == values[b] && a > b);
+  }
+
+  /**
+   * Moves the element at the given index of the min-heap up to its place; the root is the last ranked position
+   * @param values
+   * @param heap
+   * @param index
+   */
+  private static void siftUp(double[] values, int[] heap, int index) {
+    int position = heap[index];
+
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+
+      if (!isBefore(values, heap[parent], position)) {
+        break;
+      }
+
+      heap[index] = heap[parent];
+      index = parent;
+    }
+
+    heap[index] = position;
+  }
+
+  /**
+   * Moves the root of the min-heap down to its place
+   * @param values
+   * @param heap
+   * @param size count of the elements of the heap
+   */
+  private static void siftDown(double[] values, int[] heap, int size) {
+    int position = heap[0];
+    int index = 0;
+
+    while (true) {
+      int child = 2 * index + 1;
+
+      if (child >= size) {
+        break;
+      }
+
+      if (child + 1 < size && isBefore(values, heap[child], heap[child + 1])) {
+        child++;
+      }
+
+      if (!isBefore(values, position, heap[child])) {
+        break;
+      }
+
+      heap[index] = heap[child];
+      index = child;
+    }
+
+    heap[index] = position;
+  }
+}
@@ -0,0 +1,106 @@
+package vida.phd.tfd.index;
+
+import vida.phd.tfd.entity.BlockKey;
+
+/**
+ * One part of the space of the BasicBlock hashes, when the model is split over many processes. A BasicBlock belongs
+ * to the shard of the hash value of its key, so all families of a BasicBlock are in the same shard.
+ * @author Vida
+ */
+public final class Shard {
+
+  /**
+   * Index of the shard, from 0
+   */
+  private final int index;
+
+  /**
+   * Count of all shards
+   */
+  private final int count;
+
+  /**
+   * Constructor which takes the index of the shard and the count of all shards
+   * @param index
+   * @param count
+   * @throws IllegalArgumentException if the index is not between 0 and the count
+   */
+  public Shard(int index, int count) {
+    if (count < 1 || index < 0 || index >= count) {
+      throw new IllegalArgumentException("Shard " + index + "/" + count + " is not valid.");
+    }
+
+    this.index = index;
+    this.count = count;
+  }
+
+  /**
+   * Parses a shard written as index/count, e.g. 0/4
+   * @param text
+   * @return shard
+   * @throws IllegalArgumentException if the text is not a valid shard
+   */
+  public static Shard parse(String text) {
+    int slash = text.indexOf('/');
+
+    try {
+      return new Shard(Integer.parseInt(text.substring(0, slash).trim()), Integer.parseInt(text.substring(slash + 1).trim()));
+    } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+      throw new IllegalArgumentException("Shard should be index/count, e.g. 0/4.");
+    }
+  }
+
+  /**
+   *
+   * @param hash hash value of a BlockKey, or of the probe it is decoded into
+   * @param count count of all shards
+   * @return index of the shard of the BasicBlock
+   */
+  public static int indexOf(int hash, int count) {
+    return (hash & 0x7fffffff) % count;
+  }
+
+  /**
+   *
+   * @param key
+   * @param count count of all shards
+   * @return index of the shard of the BasicBlock
+   */
+  public static int indexOf(BlockKey key, int count) {
+    return indexOf(key.hashCode(), count);
+  }
+
+  /**
+   *
+   * @param hash hash value of a BlockKey
+   * @return true if the BasicBlock belongs to this shard
+   */
+  public boolean owns(int hash) {
+    return indexOf(hash, count) == index;
+  }
+
+  /**
+   *
+   * @return index of the shard
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   *
+   * @return count of all shards
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   *
+   * @return index/count
+   */
+  @Override
+  public String toString() {
+    return index + "/" + count;
+  }
+}
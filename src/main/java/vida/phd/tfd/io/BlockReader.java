@@ -0,0 +1,198 @@
+package vida.phd.tfd.io;
+
+import vida.phd.tfd.entity.BlockKey;
+import vida.phd.tfd.index.BlockDictionary;
+import vida.phd.tfd.index.Shard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the BasicBlock hashes of a malware file, one hash per line, through a FileChannel into a reusable buffer.
+ * <br/>Lines are found by scanning the bytes for new lines and hex hashes are decoded straight into a reusable 
+ * BlockKey.Probe, so no String is built for them. Any other hash is decoded as text.
+ * <br/>A reader is not thread safe; each thread should use its own.
+ * @author Vida
+ */
+public class BlockReader {
+
+  /**
+   * Receives the BasicBlocks of a file
+   */
+  public interface Handler {
+
+    /**
+     * Called for each line of the file which is not blank
+     * @param blockId id of the BasicBlock in the dictionary; -1 if the reader does not intern and the dictionary does not have it,
+     * or if the BasicBlock belongs to another shard than the shard of the reader
+     */
+    void block(int blockId);
+  }
+
+  /**
+   * Default size of the buffer
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Dictionary the hashes are interned in
+   */
+  private final BlockDictionary dictionary;
+
+  /**
+   * True if new hashes are added to the dictionary; otherwise they are reported as -1
+   */
+  private final boolean intern;
+
+  /**
+   * Shard of the BasicBlocks which are read; null for all BasicBlocks
+   */
+  private final Shard shard;
+
+  /**
+   * Probe to decode the hashes into
+   */
+  private final BlockKey.Probe probe;
+
+  /**
+   * Buffer the file is read into
+   */
+  private ByteBuffer buffer;
+
+  /**
+   * Constructor which takes the dictionary the hashes are interned in
+   * @param dictionary 
+   */
+  public BlockReader(BlockDictionary dictionary) {
+    this(dictionary, true);
+  }
+
+  /**
+   * Constructor which takes the dictionary and whether new hashes are added to it. A reader which does not intern
+   * only looks the hashes up, so a known hex hash is read without any allocation.
+   * @param dictionary 
+   * @param intern 
+   */
+  public BlockReader(BlockDictionary dictionary, boolean intern) {
+    this(dictionary, intern, null);
+  }
+
+  /**
+   * Constructor which takes the dictionary, whether new hashes are added to it and the shard of the BasicBlocks
+   * which are read. The BasicBlocks of the other shards are neither looked up nor interned.
+   * @param dictionary 
+   * @param intern 
+   * @param shard or null for all BasicBlocks
+   */
+  public BlockReader(BlockDictionary dictionary, boolean intern, Shard shard) {
+    this.dictionary = dictionary;
+    this.intern = intern;
+    this.shard = shard;
+    this.probe = new BlockKey.Probe();
+    this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  }
+
+  /**
+   * Reads all BasicBlocks of the given file
+   * @param file
+   * @param handler receives the id of each BasicBlock
+   * @throws IOException 
+   */
+  public void read(File file, Handler handler) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      read(channel, handler);
+    }
+  }
+
+  /**
+   * Reads all BasicBlocks from the given channel until its end, e.g. the body of an upload. The channel is not closed.
+   * @param channel
+   * @param handler receives the id of each BasicBlock
+   * @throws IOException 
+   */
+  public void read(ReadableByteChannel channel, Handler handler) throws IOException {
+    buffer.clear();
+    int read;
+
+    do {
+      read = channel.read(buffer);
+      buffer.flip();
+      scanLines(handler, read < 0);
+      buffer.compact();
+
+      if (read >= 0 && !buffer.hasRemaining()) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+      }
+    } while (read >= 0);
+  }
+
+  /**
+   * Handles all complete lines of the buffer, and the last line too if the end of the file is reached
+   * @param handler
+   * @param endOfFile 
+   */
+  private void scanLines(Handler handler, boolean endOfFile) {
+    byte[] bytes = buffer.array();
+    int start = buffer.position();
+    int limit = buffer.limit();
+
+    for (int i = start; i < limit; i++) {
+      if (bytes[i] == '\n') {
+        line(bytes, start, i, handler);
+        start = i + 1;
+      }
+    }
+
+    if (endOfFile && start < limit) {
+      line(bytes, start, limit, handler);
+      start = limit;
+    }
+
+    buffer.position(start);
+  }
+
+  /**
+   * Handles one line; white spaces around the hash are ignored
+   * @param bytes
+   * @param from
+   * @param to
+   * @param handler 
+   */
+  private void line(byte[] bytes, int from, int to, Handler handler) {
+    while (from < to && (bytes[from] & 0xff) <= ' ') {
+      from++;
+    }
+    while (to > from && (bytes[to - 1] & 0xff) <= ' ') {
+      to--;
+    }
+
+    if (from < to) {
+      int blockId;
+
+      if (probe.decode(bytes, from, to)) {
+        if (shard != null && !shard.owns(probe.hashCode())) {
+          blockId = -1;
+        } else {
+          blockId = intern ? dictionary.intern(probe) : dictionary.find(probe);
+        }
+      } else {
+        BlockKey key = BlockKey.of(new String(bytes, from, to - from, Charset.defaultCharset()));
+        if (shard != null && !shard.owns(key.hashCode())) {
+          blockId = -1;
+        } else {
+          blockId = intern ? dictionary.intern(key) : dictionary.find(key);
+        }
+      }
+
+      handler.block(blockId);
+    }
+  }
+}
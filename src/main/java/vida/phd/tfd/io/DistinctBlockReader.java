@@ -0,0 +1,108 @@
+package vida.phd.tfd.io;
+
+import vida.phd.tfd.index.BlockDictionary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Reads the distinct BasicBlocks of a malware file which a dictionary has, in the order they are first seen, without
+ * building the malware. The hashes are only looked up, so the dictionary does not grow.
+ * <br/>The reader, the bit set of the seen ids and the array of the ids are reused for every file, so reading a file
+ * of known hex hashes allocates almost nothing. A reader is not thread safe; each thread should use its own.
+ * @author Vida
+ */
+public class DistinctBlockReader implements BlockReader.Handler {
+
+  /**
+   * Dictionary the hashes are looked up in
+   */
+  private final BlockDictionary dictionary;
+
+  /**
+   * Reader which looks the BasicBlocks up in the dictionary
+   */
+  private final BlockReader reader;
+
+  /**
+   * Ids of the BasicBlocks which are already seen in the current file
+   */
+  private final BitSet seen;
+
+  /**
+   * Ids of the distinct BasicBlocks of the current file in the order they are first seen
+   */
+  private int[] ids;
+
+  /**
+   * Count of the ids of the current file
+   */
+  private int size;
+
+  /**
+   * Constructor which takes the dictionary the hashes are looked up in
+   * @param dictionary
+   */
+  public DistinctBlockReader(BlockDictionary dictionary) {
+    this.dictionary = dictionary;
+    this.reader = new BlockReader(dictionary, false);
+    this.seen = new BitSet();
+    this.ids = new int[1024];
+  }
+
+  /**
+   * Reads the given file
+   * @param file
+   * @return count of the distinct BasicBlocks of the file which the dictionary has
+   * @throws IOException
+   */
+  public int read(File file) throws IOException {
+    seen.clear();
+    size = 0;
+    reader.read(file, this);
+    return size;
+  }
+
+  /**
+   * Adds the id of the given BasicBlock, unless it is already seen or the dictionary does not have it
+   * @param blockId
+   */
+  @Override
+  public void block(int blockId) {
+    if (blockId >= 0 && !seen.get(blockId)) {
+      seen.set(blockId);
+
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      ids[size++] = blockId;
+    }
+  }
+
+  /**
+   *
+   * @return ids of the distinct BasicBlocks of the last file in the order they are first seen; only the first
+   * {@link #size()} are valid and the array is reused by the next file
+   */
+  public int[] getIds() {
+    return ids;
+  }
+
+  /**
+   *
+   * @return count of the ids of the last file
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   *
+   * @return dictionary the hashes are looked up in
+   */
+  public BlockDictionary getDictionary() {
+    return dictionary;
+  }
+}
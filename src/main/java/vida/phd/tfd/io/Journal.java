@@ -0,0 +1,340 @@
+package vida.phd.tfd.io;
+
+import vida.phd.tfd.entity.BlockCounts;
+import vida.phd.tfd.entity.BlockKey;
+import vida.phd.tfd.entity.Malware;
+import vida.phd.tfd.index.BlockDictionary;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the malware which are added to the families after the last snapshot. It is kept next to
+ * the snapshot and replayed on top of it when the snapshot is loaded.
+ * <br/>Each record has the family and the name of a malware, the keys which were new to the dictionary and the
+ * ids and counts of the BasicBlocks of the malware, followed by a CRC32. Records are written as they are appended
+ * but forced to the disk only by {@link #commit()}, once per batch. A torn record at the end of the journal,
+ * e.g. after a crash, is dropped when the journal is replayed.
+ * @author Vida
+ */
+public class Journal implements Closeable {
+
+  /**
+   * First int of every journal; "TFDJ"
+   */
+  private static final int MAGIC = 0x5446444A;
+
+  /**
+   * Version of the format
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * Size of the header: magic and version
+   */
+  private static final int HEADER_SIZE = 8;
+
+  /**
+   * Receives the records of the journal when it is replayed
+   */
+  public interface Handler {
+
+    /**
+     * Called for each record of the journal, in the order they were appended
+     * @param familyName
+     * @param malwareName
+     * @param blocks ids and counts of the BasicBlocks of the malware
+     */
+    void malware(String familyName, String malwareName, BlockCounts blocks);
+  }
+
+  /**
+   * File of the journal
+   */
+  private final File file;
+
+  /**
+   * Channel of the file
+   */
+  private final FileChannel channel;
+
+  /**
+   * Buffer a record is built in before it is written
+   */
+  private ByteBuffer buffer;
+
+  /**
+   * Checksum of the records
+   */
+  private final CRC32 crc;
+
+  /**
+   * Count of the keys of the dictionary which are in the snapshot or the records of the journal
+   */
+  private int countOfKeys;
+
+  /**
+   * Count of the records which are appended after the last commit
+   */
+  private int uncommitted;
+
+  /**
+   * Opens the journal of the given file; the file is created if it does not exist
+   * @param file
+   * @throws IOException if the file is not a journal or its version is not supported
+   */
+  public Journal(File file) throws IOException {
+    this.file = file;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.buffer = ByteBuffer.allocate(64 * 1024);
+    this.crc = new CRC32();
+
+    if (channel.size() < HEADER_SIZE) {
+      reset(0);
+    } else {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      readFully(header, 0);
+      header.flip();
+
+      if (header.getInt() != MAGIC) {
+        channel.close();
+        throw new IOException(file.getAbsolutePath() + " is not a journal!");
+      }
+
+      int version = header.getInt();
+      if (version != VERSION) {
+        channel.close();
+        throw new IOException("Version " + version + " of the journal is not supported; expected version " + VERSION + ".");
+      }
+    }
+  }
+
+  /**
+   * Journal which is kept next to the given snapshot file
+   * @param snapshot
+   * @return file of the journal
+   */
+  public static File of(File snapshot) {
+    return new File(snapshot.getAbsolutePath() + ".journal");
+  }
+
+  /**
+   * Appends a record of the given malware. Its family should have the dictionary the BasicBlocks of the malware are interned in.
+   * <br/>The keys which were added to the dictionary after the last record are written with the malware.
+   * @param malware
+   * @throws IOException
+   */
+  public void append(Malware malware) throws IOException {
+    BlockDictionary dictionary = malware.getFamily().getDictionary();
+    int firstNewId = countOfKeys;
+    BlockCounts blocks = malware.getBasicBlocks();
+    byte[] familyName = malware.getFamily().getName().getBytes(StandardCharsets.UTF_8);
+    byte[] malwareName = malware.getName().getBytes(StandardCharsets.UTF_8);
+    int countOfNewKeys = dictionary.size() - firstNewId;
+
+    int length = 4 + familyName.length + 4 + malwareName.length + 8 + 4 + blocks.size() * 8;
+    for (int id = firstNewId; id < firstNewId + countOfNewKeys; id++) {
+      length += dictionary.getKey(id).serializedSize();
+    }
+
+    if (buffer.capacity() < length + 8) {
+      buffer = ByteBuffer.allocate(length + 8);
+    }
+
+    buffer.clear();
+    buffer.putInt(length);
+    buffer.putInt(familyName.length).put(familyName);
+    buffer.putInt(malwareName.length).put(malwareName);
+    buffer.putInt(firstNewId).putInt(countOfNewKeys);
+    for (int id = firstNewId; id < firstNewId + countOfNewKeys; id++) {
+      dictionary.getKey(id).write(buffer);
+    }
+    buffer.putInt(blocks.size());
+    buffer.asIntBuffer().put(blocks.getIds(), 0, blocks.size());
+    buffer.position(buffer.position() + blocks.size() * 4);
+    buffer.asIntBuffer().put(blocks.getCounts(), 0, blocks.size());
+    buffer.position(buffer.position() + blocks.size() * 4);
+
+    crc.reset();
+    crc.update(buffer.array(), 4, length);
+    buffer.putInt((int) crc.getValue());
+
+    buffer.flip();
+    long position = channel.size();
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+
+    countOfKeys = dictionary.size();
+    uncommitted++;
+  }
+
+  /**
+   * Forces the appended records to the disk
+   * @throws IOException
+   */
+  public void commit() throws IOException {
+    if (uncommitted > 0) {
+      channel.force(false);
+      uncommitted = 0;
+    }
+  }
+
+  /**
+   * Replays all records of the journal. The new keys of each record are interned in the given dictionary, which
+   * must be the dictionary of the snapshot of the journal. A torn record at the end is dropped.
+   * Afterwards the records which are appended continue from the keys of the dictionary.
+   * @param dictionary
+   * @param handler
+   * @return count of the records
+   * @throws IOException if the journal does not match the dictionary
+   */
+  public int replay(BlockDictionary dictionary, Handler handler) throws IOException {
+    long position = HEADER_SIZE;
+    long size = channel.size();
+    ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+    int result = 0;
+
+    while (position + 4 <= size) {
+      lengthBuffer.clear();
+      readFully(lengthBuffer, position);
+      lengthBuffer.flip();
+      int length = lengthBuffer.getInt();
+
+      if (length < 0 || position + 4 + length + 4 > size) {
+        break;
+      }
+
+      ByteBuffer record = ByteBuffer.allocate(length + 4);
+      readFully(record, position + 4);
+      crc.reset();
+      crc.update(record.array(), 0, length);
+      record.flip();
+      record.limit(length);
+
+      if ((int) crc.getValue() != ByteBuffer.wrap(record.array(), length, 4).getInt()) {
+        break;
+      }
+
+      String familyName = getString(record);
+      String malwareName = getString(record);
+      int firstNewId = record.getInt();
+      int countOfNewKeys = record.getInt();
+
+      for (int i = 0; i < countOfNewKeys; i++) {
+        BlockKey key = BlockKey.read(record);
+        int id = dictionary.intern(key);
+
+        if (id != firstNewId + i) {
+          throw new IOException("Journal " + file.getAbsolutePath() + " does not match its snapshot.");
+        }
+      }
+
+      int countOfBlocks = record.getInt();
+      int[] ids = new int[countOfBlocks];
+      int[] counts = new int[countOfBlocks];
+      record.asIntBuffer().get(ids);
+      record.position(record.position() + countOfBlocks * 4);
+      record.asIntBuffer().get(counts);
+
+      handler.malware(familyName, malwareName, new BlockCounts(ids, counts));
+      position += 4 + length + 4;
+      result++;
+    }
+
+    countOfKeys = dictionary.size();
+
+    if (position < size) {
+      Logger.getLogger(Journal.class.getName()).log(Level.WARNING, "Torn record at the end of {0} is dropped.", file.getAbsolutePath());
+      channel.truncate(position);
+      channel.force(false);
+    }
+
+    return result;
+  }
+
+  /**
+   * Drops all records, e.g. after they are folded into a new snapshot
+   * @param countOfKeys count of the keys of the dictionary of the snapshot
+   * @throws IOException
+   */
+  public final void reset(int countOfKeys) throws IOException {
+    this.countOfKeys = countOfKeys;
+    channel.truncate(0);
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putInt(VERSION);
+    header.flip();
+    while (header.hasRemaining()) {
+      channel.write(header, header.position());
+    }
+
+    channel.force(false);
+    uncommitted = 0;
+  }
+
+  /**
+   *
+   * @return size of the journal in bytes
+   * @throws IOException
+   */
+  public long size() throws IOException {
+    return channel.size();
+  }
+
+  /**
+   *
+   * @return file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Commits the appended records and closes the journal
+   * @throws IOException
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      commit();
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Reads from the given position until the buffer is full
+   * @param target
+   * @param position
+   * @throws IOException
+   */
+  private void readFully(ByteBuffer target, long position) throws IOException {
+    while (target.hasRemaining()) {
+      int read = channel.read(target, position);
+      if (read < 0) {
+        throw new IOException("Journal " + file.getAbsolutePath() + " is truncated.");
+      }
+      position += read;
+    }
+  }
+
+  /**
+   *
+   * @param record
+   * @return String which is written as its length and UTF-8 bytes
+   */
+  private static String getString(ByteBuffer record) {
+    byte[] bytes = new byte[record.getInt()];
+    record.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
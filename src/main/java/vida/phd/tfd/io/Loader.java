@@ -1,9 +1,13 @@
 package vida.phd.tfd.io;
 
 import vida.phd.tfd.entity.Family;
+import vida.phd.tfd.entity.FamilyBuilder;
 import vida.phd.tfd.entity.Malware;
+import vida.phd.tfd.index.BlockDictionary;
 
-import java.io.*;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -23,6 +27,11 @@ public class Loader implements Callable<Family> {
    * Family name
    */
   private final String familyName;
+
+  /**
+   * Dictionary of the hashes of the BasicBlocks
+   */
+  private final BlockDictionary dictionary;
   
   /**
    * Array of all *.txt files
@@ -35,8 +44,19 @@ public class Loader implements Callable<Family> {
    * @param familyName 
    */
   public Loader(File directory, String familyName) {
+    this(directory, familyName, new BlockDictionary());
+  }
+
+  /**
+   * Constructor of the class which takes the dictionary the hashes of the BasicBlocks are interned in.
+   * @param directory which contains all malware files.
+   * @param familyName 
+   * @param dictionary 
+   */
+  public Loader(File directory, String familyName, BlockDictionary dictionary) {
     this.directory = directory;
     this.familyName = familyName;
+    this.dictionary = dictionary;
   }
 
   /**
@@ -46,41 +66,115 @@ public class Loader implements Callable<Family> {
    */
   @Override
   public Family call() throws Exception {
-    Family family = new Family(familyName);
+    Family family = new Family(familyName, dictionary);
+    files = listMalwareFiles(directory);
+    BlockReader reader = new BlockReader(dictionary);
+
+    for (File file : files) {
+      try {
+        family.addMalware(readMalware(file, family, reader));
+      } catch (IOException ex) {
+        Logger.getLogger(Loader.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+      }
+    }
+
+    family.freeze();
+    return family;
+  }
+
+  /**
+   * 
+   * @param directory
+   * @return all *.txt files of the given directory; empty if it is not a directory
+   */
+  public static File[] listMalwareFiles(File directory) {
+    File[] result = null;
 
     if (directory.isDirectory()) {
-      files = directory.listFiles(new FileFilter() {
+      result = directory.listFiles(new FileFilter() {
 
         @Override
         public boolean accept(File file) {
           return file.isFile() && file.getName().toLowerCase().endsWith(".txt");
         }
       });
+    }
 
-      for (File file : files) {
-        String malwareName = file.getName();        
-        
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-          Malware malware = new Malware(malwareName, family);
-          
-          String code;
-
-          while ((code = reader.readLine()) != null) {
-            code = code.trim();
-            if (code.length() > 0) {
-              malware.addBasicBlock(code);
-              family.addBasicBlock(code);
-            }
-          }
-          
-          family.addMalware(malware);
-        } catch (IOException ex) {
-          Logger.getLogger(Loader.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+    return result == null ? new File[0] : result;
+  }
+
+  /**
+   * Reads a malware file. Its BasicBlocks are interned in the dictionary of the given family and added to the family too.
+   * <br/>The malware is not added to the family.
+   * @param file
+   * @param family
+   * @return Malware
+   * @throws IOException 
+   */
+  public static Malware readMalware(File file, Family family) throws IOException {
+    return readMalware(file, family, new BlockReader(family.getDictionary()));
+  }
+
+  /**
+   * Reads a malware file with the given reader, which must intern in the dictionary of the given family.
+   * The BasicBlocks of the other shards of the reader are only counted in the family.
+   * <br/>The malware is not added to the family.
+   * @param file
+   * @param family
+   * @param reader
+   * @return Malware
+   * @throws IOException 
+   */
+  public static Malware readMalware(File file, final Family family, BlockReader reader) throws IOException {
+    final Malware malware = new Malware(file.getName(), family);
+
+    reader.read(file, new BlockReader.Handler() {
+
+      @Override
+      public void block(int blockId) {
+        if (blockId < 0) {
+          family.addOtherBasicBlocks(1);
+        } else {
+          malware.addBasicBlock(blockId);
+          family.addBasicBlock(blockId);
         }
       }
-    }
+    });
 
-    return family;
+    malware.freeze();
+    return malware;
+  }
+
+  /**
+   * Reads a malware file with the given reader, which must intern in the dictionary of the given builder, and adds it
+   * to the builder. Its BasicBlocks are counted in the malware first, so the builder is updated once per stripe.
+   * The BasicBlocks of the other shards of the reader are only counted in the family.
+   * @param file
+   * @param builder
+   * @param reader
+   * @return Malware
+   * @throws Exception if the file can not be read or the malware is already added
+   */
+  public static Malware readMalware(File file, FamilyBuilder builder, BlockReader reader) throws Exception {
+    final Malware malware = new Malware(file.getName(), null);
+    final int[] countOfOtherBasicBlocks = new int[1];
+
+    reader.read(file, new BlockReader.Handler() {
+
+      @Override
+      public void block(int blockId) {
+        if (blockId < 0) {
+          countOfOtherBasicBlocks[0]++;
+        } else {
+          malware.addBasicBlock(blockId);
+        }
+      }
+    });
+
+    malware.freeze();
+    builder.addMalware(malware);
+    builder.addOtherBasicBlocks(countOfOtherBasicBlocks[0]);
+    return malware;
   }
 
   /**
@@ -107,29 +201,15 @@ public class Loader implements Callable<Family> {
    */
   public static Family loadMalware(String path, String familyName) {
     Family result = new Family(familyName);
-    Malware malware;
-
-    File file = new File(path);
-    String malwareName = file.getName();
-
-    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-      malware = new Malware(malwareName, result);
 
-      String code;
-
-      while ((code = reader.readLine()) != null) {
-        code = code.trim();
-        if (code.length() > 0) {
-          malware.addBasicBlock(code);
-          result.addBasicBlock(code);
-        }
-      }
-
-      result.addMalware(malware);
+    try {
+      result.addMalware(readMalware(new File(path), result));
     } catch (Exception ex) {
       Logger.getLogger(Loader.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
     }
 
+    result.freeze();
     return result;
   }
+
 }
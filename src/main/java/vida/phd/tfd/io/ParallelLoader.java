@@ -0,0 +1,153 @@
+package vida.phd.tfd.io;
+
+import vida.phd.tfd.entity.Family;
+import vida.phd.tfd.entity.FamilyBuilder;
+import vida.phd.tfd.index.BlockDictionary;
+import vida.phd.tfd.index.Shard;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads many families at once with file level parallelism. The *.txt files of all families are read on a 
+ * work stealing ForkJoinPool, so one big family does not keep the other threads idle.
+ * <br/>All threads add their malware straight to one striped {@link FamilyBuilder} per family, so the threads
+ * which read the files of a big family fill it together; each family is built and frozen at the end.
+ * @author Vida
+ */
+public class ParallelLoader {
+
+  /**
+   * Count of threads which read the files
+   */
+  private final int threads;
+
+  /**
+   * Dictionary the hashes of the BasicBlocks are interned in
+   */
+  private final BlockDictionary dictionary;
+
+  /**
+   * Reader of each thread; its buffer is reused for all files the thread reads
+   */
+  private final ThreadLocal<BlockReader> readers;
+
+  /**
+   * Constructor which takes the dictionary and the count of threads
+   * @param dictionary
+   * @param threads 
+   */
+  public ParallelLoader(BlockDictionary dictionary, int threads) {
+    this(dictionary, threads, null);
+  }
+
+  /**
+   * Constructor which takes the dictionary, the count of threads and the shard of the BasicBlocks which are kept
+   * @param dictionary
+   * @param threads 
+   * @param shard or null to keep all BasicBlocks
+   */
+  public ParallelLoader(BlockDictionary dictionary, int threads, final Shard shard) {
+    this.dictionary = dictionary;
+    this.threads = threads;
+    this.readers = new ThreadLocal<BlockReader>() {
+      @Override
+      protected BlockReader initialValue() {
+        return new BlockReader(ParallelLoader.this.dictionary, true, shard);
+      }
+    };
+  }
+
+  /**
+   * Loads the families of the given directories. Name of each family is the name of its directory.
+   * @param directories
+   * @return loaded families in the order of the directories
+   */
+  public List<Family> load(File[] directories) {
+    final List<File> files = new ArrayList<>();
+    final List<String> familyNames = new ArrayList<>();
+
+    for (File directory : directories) {
+      for (File file : Loader.listMalwareFiles(directory)) {
+        files.add(file);
+        familyNames.add(directory.getName());
+      }
+    }
+
+    final Map<String, FamilyBuilder> builders = new HashMap<>();
+    for (File directory : directories) {
+      builders.put(directory.getName(), new FamilyBuilder(directory.getName(), dictionary));
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.invoke(new FileRange(files, familyNames, 0, files.size(), builders));
+    } finally {
+      pool.shutdown();
+    }
+
+    List<Family> result = new ArrayList<>(directories.length);
+    for (File directory : directories) {
+      try {
+        result.add(builders.get(directory.getName()).build());
+      } catch (Exception ex) {
+        Logger.getLogger(ParallelLoader.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+        result.add(new Family(directory.getName(), dictionary));
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * 
+   * @return count of threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Reads a range of files by splitting it in halves
+   */
+  private class FileRange extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<File> files;
+    private final List<String> familyNames;
+    private final int from;
+    private final int to;
+    private final Map<String, FamilyBuilder> builders;
+
+    FileRange(List<File> files, List<String> familyNames, int from, int to, Map<String, FamilyBuilder> builders) {
+      this.files = files;
+      this.familyNames = familyNames;
+      this.from = from;
+      this.to = to;
+      this.builders = builders;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new FileRange(files, familyNames, from, mid, builders), new FileRange(files, familyNames, mid, to, builders));
+      } else if (to > from) {
+        try {
+          Loader.readMalware(files.get(from), builders.get(familyNames.get(from)), readers.get());
+        } catch (Exception ex) {
+          Logger.getLogger(ParallelLoader.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,426 @@
+package vida.phd.tfd.io;
+
+import vida.phd.tfd.entity.BlockCounts;
+import vida.phd.tfd.entity.BlockKey;
+import vida.phd.tfd.entity.Family;
+import vida.phd.tfd.entity.Malware;
+import vida.phd.tfd.index.BlockDictionary;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary snapshot of the loaded families. It keeps the dictionary of the BasicBlocks, the block counts of the
+ * families and their malware and the calculated metric columns, so the families are loaded without parsing
+ * and calculating them again.
+ * <br/>The file starts with a magic number and the format version. The arrays are written as bulk big-endian
+ * primitives and read from memory-mapped windows of the file.
+ * @author Vida
+ */
+public class Snapshot {
+
+  /**
+   * First int of every snapshot; "TFDS"
+   */
+  private static final int MAGIC = 0x54464453;
+
+  /**
+   * Version of the format
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * Flag of the calculated TFR and TFD
+   */
+  private static final int TFD_CALCULATED = 1;
+
+  /**
+   * Flag of the calculated MDF and FC
+   */
+  private static final int FC_CALCULATED = 2;
+
+  /**
+   * Size of each memory-mapped window of the file when it is read
+   */
+  private static final int WINDOW_SIZE = 256 * 1024 * 1024;
+
+  /**
+   * Size of the buffer when the file is written
+   */
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * Home directory of the families; null if it is not known
+   */
+  private final File familiesHome;
+
+  /**
+   * Dictionary of the BasicBlocks of the families
+   */
+  private final BlockDictionary dictionary;
+
+  /**
+   * Families in the order of their ids
+   */
+  private final Family[] families;
+
+  /**
+   * True if TFR and TFD of the families are calculated
+   */
+  private final boolean tfdCalculated;
+
+  /**
+   * True if MDF and FC of the families are calculated
+   */
+  private final boolean fcCalculated;
+
+  /**
+   * Constructor which takes the state of the loaded families
+   * @param familiesHome
+   * @param dictionary
+   * @param families in the order of their ids
+   * @param tfdCalculated
+   * @param fcCalculated
+   */
+  public Snapshot(File familiesHome, BlockDictionary dictionary, Family[] families, boolean tfdCalculated, boolean fcCalculated) {
+    this.familiesHome = familiesHome;
+    this.dictionary = dictionary;
+    this.families = families;
+    this.tfdCalculated = tfdCalculated;
+    this.fcCalculated = fcCalculated;
+  }
+
+  /**
+   * Writes the snapshot to the given file. It is written to a temporary file first, which then replaces the given file.
+   * @param file
+   * @throws IOException
+   */
+  public void write(File file) throws IOException {
+    File temporary = new File(file.getAbsolutePath() + ".tmp");
+
+    try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      Output output = new Output(channel);
+
+      output.ensure(12);
+      output.buffer.putInt(MAGIC).putInt(VERSION).putInt((tfdCalculated ? TFD_CALCULATED : 0) | (fcCalculated ? FC_CALCULATED : 0));
+      output.putString(familiesHome == null ? "" : familiesHome.getAbsolutePath());
+
+      int countOfKeys = dictionary.size();
+      int maxKeySize = 0;
+      for (int i = 0; i < countOfKeys; i++) {
+        maxKeySize = Math.max(maxKeySize, dictionary.getKey(i).serializedSize());
+      }
+
+      output.ensure(8);
+      output.buffer.putInt(countOfKeys).putInt(maxKeySize);
+      for (int i = 0; i < countOfKeys; i++) {
+        BlockKey key = dictionary.getKey(i);
+        output.ensure(key.serializedSize());
+        key.write(output.buffer);
+      }
+
+      output.putInt(families.length);
+      for (Family family : families) {
+        BlockCounts blocks = family.getBlockCounts();
+        int size = blocks.size();
+
+        output.putString(family.getName());
+        output.putInt(size);
+        output.putInts(blocks.getIds(), size);
+        output.putInts(blocks.getCounts(), size);
+        output.putDoubles(family.getTermFrequencyRatios(), size);
+        output.putDoubles(family.getDistributionTermFrequencies(), size);
+        output.putDoubles(family.getMDFs(), size);
+        output.putDoubles(family.getFCs(), size);
+
+        List<String> names = new ArrayList<>(family.getMalwares().keySet());
+        Collections.sort(names);
+
+        output.putInt(names.size());
+        for (String name : names) {
+          BlockCounts malwareBlocks = family.getMalwares().get(name).getBasicBlocks();
+          malwareBlocks.freeze();
+
+          output.putString(name);
+          output.putInt(malwareBlocks.size());
+          output.putInts(malwareBlocks.getIds(), malwareBlocks.size());
+          output.putInts(malwareBlocks.getCounts(), malwareBlocks.size());
+        }
+      }
+
+      output.putInt(MAGIC);
+      output.flush();
+      channel.force(true);
+    }
+
+    try {
+      Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException ex) {
+      Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Reads the snapshot of the given file
+   * @param file
+   * @return Snapshot
+   * @throws IOException if the file is not a snapshot, its version is not supported or it is truncated
+   */
+  public static Snapshot read(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      Input input = new Input(channel);
+
+      if (input.getInt() != MAGIC) {
+        throw new IOException(file.getAbsolutePath() + " is not a snapshot!");
+      }
+
+      int version = input.getInt();
+      if (version != VERSION) {
+        throw new IOException("Version " + version + " of the snapshot is not supported; expected version " + VERSION + ".");
+      }
+
+      int flags = input.getInt();
+      String home = input.getString();
+
+      int countOfKeys = input.getInt();
+      int maxKeySize = input.getInt();
+      BlockDictionary dictionary = new BlockDictionary();
+      for (int i = 0; i < countOfKeys; i++) {
+        input.ensure((int) Math.min(maxKeySize, input.remaining()));
+        dictionary.intern(BlockKey.read(input.buffer));
+      }
+
+      Family[] families = new Family[input.getInt()];
+      for (int f = 0; f < families.length; f++) {
+        String name = input.getString();
+        int size = input.getInt();
+
+        Family family = new Family(name, dictionary, new BlockCounts(input.getInts(size), input.getInts(size)),
+                input.getDoubles(size), input.getDoubles(size), input.getDoubles(size), input.getDoubles(size));
+
+        int countOfMalwares = input.getInt();
+        for (int m = 0; m < countOfMalwares; m++) {
+          String malwareName = input.getString();
+          int malwareSize = input.getInt();
+
+          try {
+            family.addMalware(new Malware(malwareName, family, new BlockCounts(input.getInts(malwareSize), input.getInts(malwareSize))));
+          } catch (Exception ex) {
+            throw new IOException("Snapshot is corrupt: " + ex.getMessage(), ex);
+          }
+        }
+
+        families[f] = family;
+      }
+
+      if (input.getInt() != MAGIC) {
+        throw new IOException("Snapshot is corrupt: " + file.getAbsolutePath());
+      }
+
+      return new Snapshot(home.isEmpty() ? null : new File(home), dictionary, families, (flags & TFD_CALCULATED) != 0, (flags & FC_CALCULATED) != 0);
+    }
+  }
+
+  /**
+   *
+   * @return familiesHome or null if it is not known
+   */
+  public File getFamiliesHome() {
+    return familiesHome;
+  }
+
+  /**
+   *
+   * @return dictionary
+   */
+  public BlockDictionary getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   *
+   * @return families in the order of their ids
+   */
+  public Family[] getFamilies() {
+    return families;
+  }
+
+  /**
+   *
+   * @return true if TFR and TFD of the families are calculated
+   */
+  public boolean isTfdCalculated() {
+    return tfdCalculated;
+  }
+
+  /**
+   *
+   * @return true if MDF and FC of the families are calculated
+   */
+  public boolean isFcCalculated() {
+    return fcCalculated;
+  }
+
+  /**
+   * Buffered output to a FileChannel
+   */
+  private static class Output {
+
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+
+    Output(FileChannel channel) {
+      this.channel = channel;
+      this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Makes room for the given count of bytes in the buffer
+     * @param bytes
+     * @throws IOException
+     */
+    void ensure(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        flush();
+
+        if (buffer.capacity() < bytes) {
+          buffer = ByteBuffer.allocate(bytes);
+        }
+      }
+    }
+
+    void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    void putInt(int value) throws IOException {
+      ensure(4);
+      buffer.putInt(value);
+    }
+
+    void putString(String value) throws IOException {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      ensure(4 + bytes.length);
+      buffer.putInt(bytes.length).put(bytes);
+    }
+
+    void putInts(int[] values, int count) throws IOException {
+      int done = 0;
+      while (done < count) {
+        ensure(4);
+        int chunk = Math.min(count - done, buffer.remaining() / 4);
+        buffer.asIntBuffer().put(values, done, chunk);
+        buffer.position(buffer.position() + chunk * 4);
+        done += chunk;
+      }
+    }
+
+    void putDoubles(double[] values, int count) throws IOException {
+      int done = 0;
+      while (done < count) {
+        ensure(8);
+        int chunk = Math.min(count - done, buffer.remaining() / 8);
+        buffer.asDoubleBuffer().put(values, done, chunk);
+        buffer.position(buffer.position() + chunk * 8);
+        done += chunk;
+      }
+    }
+  }
+
+  /**
+   * Input from memory-mapped windows of a FileChannel; a window is mapped again from the current offset when
+   * it does not have the bytes which are needed
+   */
+  private static class Input {
+
+    private final FileChannel channel;
+    private final long size;
+    private long offset;
+    private ByteBuffer buffer;
+
+    Input(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+      this.buffer = ByteBuffer.allocate(0);
+    }
+
+    /**
+     *
+     * @return count of the bytes which are not read yet
+     */
+    long remaining() {
+      return size - offset - buffer.position();
+    }
+
+    /**
+     * Makes sure the window has the given count of bytes
+     * @param bytes
+     * @throws IOException
+     */
+    void ensure(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        offset += buffer.position();
+
+        if (offset + bytes > size) {
+          throw new EOFException("Snapshot is truncated.");
+        }
+
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW_SIZE, size - offset));
+      }
+    }
+
+    int getInt() throws IOException {
+      ensure(4);
+      return buffer.getInt();
+    }
+
+    String getString() throws IOException {
+      int length = getInt();
+      byte[] bytes = new byte[length];
+      ensure(length);
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    int[] getInts(int count) throws IOException {
+      int[] result = new int[count];
+      int done = 0;
+      while (done < count) {
+        ensure(4);
+        int chunk = Math.min(count - done, buffer.remaining() / 4);
+        buffer.asIntBuffer().get(result, done, chunk);
+        buffer.position(buffer.position() + chunk * 4);
+        done += chunk;
+      }
+      return result;
+    }
+
+    double[] getDoubles(int count) throws IOException {
+      double[] result = new double[count];
+      int done = 0;
+      while (done < count) {
+        ensure(8);
+        int chunk = Math.min(count - done, buffer.remaining() / 8);
+        buffer.asDoubleBuffer().get(result, done, chunk);
+        buffer.position(buffer.position() + chunk * 8);
+        done += chunk;
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,628 @@
+package vida.phd.tfd.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import vida.phd.tfd.ModelVersion;
+import vida.phd.tfd.StreamingScorer;
+import vida.phd.tfd.TFD;
+import vida.phd.tfd.entity.BasicBlock;
+import vida.phd.tfd.entity.BlockKey;
+import vida.phd.tfd.entity.Family;
+import vida.phd.tfd.index.BlockIndex;
+import vida.phd.tfd.index.Postings;
+import vida.phd.tfd.util.Json;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the classification and the queries of the model as JSON over HTTP, with the HTTP server of the JDK.
+ * <br/>Each request pins the version of the model which is current when it starts, so it is never blocked by a
+ * reload or a classification of the command line. Malware is only scored; nothing is added to the families.
+ * <br/>TFD and FC are calculated before the server starts. If a load of the command line publishes a version without
+ * them, they are calculated again in the background and the classifications are answered with 503 until they are ready.
+ * <br/>Requests are handled by a fixed pool of threads. At most a bounded count of requests are admitted at once,
+ * running or waiting for a thread; any other request is answered at once with 503 and a Retry-After header, so the
+ * clients are slowed down instead of the server running out of memory.
+ * <br/>It listens on the loopback address unless another address is given, as GET /classify reads any file the server
+ * process can open.
+ * <br/>Endpoints:
+ * <br/>POST /classify?type=tfd|fc with the BasicBlocks of a malware as the body, one hash per line
+ * <br/>GET /classify?type=tfd|fc&amp;path=... with the path of a malware file on the server
+ * <br/>GET /bb?hash=... the families which have the BasicBlock
+ * <br/>GET /top?family=...&amp;count=... the top BasicBlocks of the family by TFD
+ * <br/>GET /stats the counts of the requests and their latency percentiles
+ * @author Vida
+ */
+public class ClassificationServer {
+
+  /**
+   * Count of the latest latencies which the percentiles are calculated from
+   */
+  private static final int LATENCY_SAMPLES = 4096;
+
+  /**
+   * Model the requests are served from
+   */
+  private final TFD tfd;
+
+  /**
+   * HTTP server of the JDK
+   */
+  private final HttpServer server;
+
+  /**
+   * Threads which handle the admitted requests
+   */
+  private final ExecutorService workers;
+
+  /**
+   * Count of the threads
+   */
+  private final int threads;
+
+  /**
+   * Count of the requests which may be admitted at once
+   */
+  private final int capacity;
+
+  /**
+   * One permit for each admitted request
+   */
+  private final Semaphore admission;
+
+  /**
+   * True on the thread of the server while it answers a request which is not admitted
+   */
+  private final ThreadLocal<Boolean> rejecting;
+
+  /**
+   * Streaming scorer of each thread; it is replaced when the version of the model changes
+   */
+  private final ThreadLocal<StreamingScorer> scorers;
+
+  /**
+   * Thread which calculates the model in the background when a version without the measures is published
+   */
+  private final ExecutorService calculation;
+
+  /**
+   * True while the model is calculated in the background
+   */
+  private final AtomicBoolean calculating;
+
+  /**
+   * Count of the handled requests
+   */
+  private final AtomicLong countOfRequests;
+
+  /**
+   * Count of the requests which are not admitted
+   */
+  private final AtomicLong countOfRejected;
+
+  /**
+   * Latest latencies in nanoseconds, as a ring
+   */
+  private final long[] latencies;
+
+  /**
+   * Count of all latencies which are added to the ring
+   */
+  private long countOfLatencies;
+
+  /**
+   * Constructor which takes the model, the port, the count of threads and the count of requests which may be admitted at once.
+   * The server listens on the loopback address.
+   * @param tfd
+   * @param port
+   * @param threads
+   * @param capacity at least the count of threads
+   * @throws IOException if the port can not be bound
+   */
+  public ClassificationServer(TFD tfd, int port, int threads, int capacity) throws IOException {
+    this(tfd, InetAddress.getLoopbackAddress(), port, threads, capacity);
+  }
+
+  /**
+   * Constructor which takes the model, the address and the port to listen on, the count of threads and the count of 
+   * requests which may be admitted at once
+   * @param tfd
+   * @param address to listen on; the wildcard address listens on all interfaces
+   * @param port
+   * @param threads
+   * @param capacity at least the count of threads
+   * @throws IOException if the port can not be bound
+   */
+  public ClassificationServer(TFD tfd, InetAddress address, int port, int threads, int capacity) throws IOException {
+    this.tfd = tfd;
+    this.threads = threads;
+    this.capacity = Math.max(threads, capacity);
+    this.admission = new Semaphore(this.capacity);
+    this.rejecting = new ThreadLocal<>();
+    this.scorers = new ThreadLocal<>();
+    this.countOfRequests = new AtomicLong();
+    this.countOfRejected = new AtomicLong();
+    this.latencies = new long[LATENCY_SAMPLES];
+    this.workers = Executors.newFixedThreadPool(threads);
+    this.calculating = new AtomicBoolean();
+    this.calculation = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "server-calculation");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.server = HttpServer.create(new InetSocketAddress(address, port), 0);
+
+    server.setExecutor(new Executor() {
+      @Override
+      public void execute(final Runnable exchange) {
+        admit(exchange);
+      }
+    });
+
+    server.createContext("/classify", new Handler() {
+      @Override
+      void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+        classify(exchange, parameters);
+      }
+    });
+    server.createContext("/bb", new Handler() {
+      @Override
+      void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+        basicBlock(exchange, parameters);
+      }
+    });
+    server.createContext("/top", new Handler() {
+      @Override
+      void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+        top(exchange, parameters);
+      }
+    });
+    server.createContext("/stats", new Handler() {
+      @Override
+      void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+        stats(exchange);
+      }
+    });
+  }
+
+  /**
+   * Calculates TFD and FC of the loaded families, so no request waits for them, and starts serving the requests
+   */
+  public void start() {
+    if (tfd.getModel().getIndex().countOfFamilies() > 0) {
+      tfd.calculateModel(TFD.ScoreType.FAM_CLASSIFIER);
+    }
+
+    server.start();
+    System.out.println(MessageFormat.format("Serving on {0}:{1} with {2} threads; at most {3} requests are admitted at once.",
+            server.getAddress().getAddress().getHostAddress(), String.valueOf(getPort()), threads, capacity));
+  }
+
+  /**
+   * Stops serving; the running requests get one second to finish
+   */
+  public void stop() {
+    server.stop(1);
+    workers.shutdown();
+    calculation.shutdown();
+
+    try {
+      workers.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   *
+   * @return port the server listens on
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Hands the given exchange to a thread of the pool if it can be admitted; otherwise it is answered with 503 on
+   * the thread of the server at once, without reading the request.
+   * @param exchange
+   */
+  private void admit(final Runnable exchange) {
+    if (admission.tryAcquire()) {
+      try {
+        workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              exchange.run();
+            } finally {
+              admission.release();
+            }
+          }
+        });
+        return;
+      } catch (RejectedExecutionException ex) {
+        admission.release();
+      }
+    }
+
+    countOfRejected.incrementAndGet();
+    rejecting.set(Boolean.TRUE);
+    try {
+      exchange.run();
+    } finally {
+      rejecting.remove();
+    }
+  }
+
+  /**
+   * Classifies a malware which is uploaded as the body of a POST, or a malware file on the server by its path
+   * @param exchange
+   * @param parameters
+   * @throws IOException
+   */
+  private void classify(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+    String typeName = parameters.containsKey("type") ? parameters.get("type").toLowerCase() : "tfd";
+    TFD.ScoreType type = typeName.equals("fc") ? TFD.ScoreType.FAM_CLASSIFIER : (typeName.equals("tfd") ? TFD.ScoreType.TFD : null);
+    if (type == null) {
+      sendError(exchange, 400, "Type should be tfd or fc.");
+      return;
+    }
+
+    boolean upload = exchange.getRequestMethod().equals("POST");
+    String path = parameters.get("path");
+    if (!upload && path == null) {
+      sendError(exchange, 400, "POST the BasicBlocks of the malware or GET with the path of a malware file.");
+      return;
+    }
+
+    File file = upload ? null : new File(path);
+    if (file != null && !file.isFile()) {
+      sendError(exchange, 404, "Malware file " + path + " not found.");
+      return;
+    }
+
+    ModelVersion model = tfd.getModel();
+    if (model.getIndex().countOfFamilies() == 0) {
+      sendError(exchange, 503, "Please load the families first.");
+      return;
+    } else if (!model.isTfdCalculated() || (type == TFD.ScoreType.FAM_CLASSIFIER && !model.isFcCalculated())) {
+      calculateInBackground();
+      exchange.getResponseHeaders().set("Retry-After", "1");
+      sendError(exchange, 503, "The model is being calculated; please try again.");
+      return;
+    }
+
+    StreamingScorer scorer = scorers.get();
+    if (scorer == null || scorer.getModel() != model) {
+      scorer = new StreamingScorer(model);
+      scorers.set(scorer);
+    }
+
+    int[] scores = upload ? scorer.score(Channels.newChannel(exchange.getRequestBody()), type) : scorer.score(file, type);
+    Family family = model.findResultFamily(scores);
+    BlockIndex index = model.getIndex();
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\"model\":").append(model.getNumber());
+    json.append(",\"type\":");
+    Json.string(json, typeName);
+    json.append(",\"family\":");
+    Json.string(json, family == null ? null : family.getName());
+    json.append(",\"basicBlocks\":").append(scorer.getCountOfBasicBlocks());
+    json.append(",\"scores\":{");
+    for (int id = 0; id < index.countOfFamilies(); id++) {
+      if (id > 0) {
+        json.append(',');
+      }
+      Json.string(json, index.getFamily(id).getName());
+      json.append(':').append(scores[id]);
+    }
+    json.append("}}");
+
+    send(exchange, 200, json);
+  }
+
+  /**
+   * Calculates TFD and FC of the current version of the model on the thread of the calculation, unless it is already 
+   * being calculated
+   */
+  private void calculateInBackground() {
+    if (!calculating.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      calculation.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            tfd.calculateModel(TFD.ScoreType.FAM_CLASSIFIER);
+          } finally {
+            calculating.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      calculating.set(false);
+    }
+  }
+
+  /**
+   * Finds the families which have the given BasicBlock
+   * @param exchange
+   * @param parameters
+   * @throws IOException
+   */
+  private void basicBlock(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+    String hash = parameters.get("hash");
+    if (hash == null || hash.trim().isEmpty()) {
+      sendError(exchange, 400, "Hash of the BasicBlock is missing.");
+      return;
+    }
+
+    ModelVersion model = tfd.getModel();
+    BlockIndex index = model.getIndex();
+    Postings postings = index.get(BlockKey.of(hash.trim()));
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\"model\":").append(model.getNumber());
+    json.append(",\"hash\":");
+    Json.string(json, hash.trim());
+    json.append(",\"families\":[");
+    for (int i = 0; postings != null && i < postings.size(); i++) {
+      int familyId = postings.getFamilyId(i);
+      BasicBlock basicBlock = index.getBasicBlock(postings, i);
+
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"family\":");
+      Json.string(json, index.getFamily(familyId).getName());
+      basicBlock(json, basicBlock);
+      json.append(",\"malwares\":").append(index.countOfMalwaresInFamily(postings, familyId));
+      json.append('}');
+    }
+    json.append("],\"malwares\":").append(postings == null ? 0 : postings.countOfMalwares()).append('}');
+
+    send(exchange, 200, json);
+  }
+
+  /**
+   * Finds the top BasicBlocks of the given family by TFD
+   * @param exchange
+   * @param parameters
+   * @throws IOException
+   */
+  private void top(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+    String familyName = parameters.get("family");
+    int count;
+
+    try {
+      count = parameters.containsKey("count") ? Integer.parseInt(parameters.get("count")) : 10;
+    } catch (NumberFormatException ex) {
+      sendError(exchange, 400, "Count should be an integer.");
+      return;
+    }
+
+    ModelVersion model = tfd.getModel();
+    if (familyName == null || !model.getFamilies().containsKey(familyName)) {
+      sendError(exchange, 404, "Family " + familyName + " not found.");
+      return;
+    }
+
+    List<BasicBlock> basicBlocks;
+    try {
+      basicBlocks = TFD.topByFamily(model, familyName, count);
+    } catch (Exception ex) {
+      sendError(exchange, 404, ex.getMessage());
+      return;
+    }
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\"model\":").append(model.getNumber());
+    json.append(",\"family\":");
+    Json.string(json, familyName);
+    json.append(",\"basicBlocks\":[");
+    for (int i = 0; i < basicBlocks.size(); i++) {
+      BasicBlock basicBlock = basicBlocks.get(i);
+
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"hash\":");
+      Json.string(json, basicBlock.getCode());
+      basicBlock(json, basicBlock);
+      json.append('}');
+    }
+    json.append("]}");
+
+    send(exchange, 200, json);
+  }
+
+  /**
+   * Shows the counts of the requests and the percentiles of the latest latencies
+   * @param exchange
+   * @throws IOException
+   */
+  private void stats(HttpExchange exchange) throws IOException {
+    long[] sorted;
+    synchronized (latencies) {
+      sorted = Arrays.copyOf(latencies, (int) Math.min(countOfLatencies, LATENCY_SAMPLES));
+    }
+    Arrays.sort(sorted);
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\"model\":").append(tfd.getModel().getNumber());
+    json.append(",\"requests\":").append(countOfRequests.get());
+    json.append(",\"rejected\":").append(countOfRejected.get());
+    json.append(",\"admitted\":").append(capacity - admission.availablePermits());
+    json.append(",\"capacity\":").append(capacity);
+    json.append(",\"p50Ms\":");
+    Json.number(json, percentile(sorted, 50) / 1000000.0);
+    json.append(",\"p99Ms\":");
+    Json.number(json, percentile(sorted, 99) / 1000000.0);
+    json.append('}');
+
+    send(exchange, 200, json);
+  }
+
+  /**
+   * Adds the latency of a handled request
+   * @param nanos
+   */
+  private void addLatency(long nanos) {
+    synchronized (latencies) {
+      latencies[(int) (countOfLatencies % LATENCY_SAMPLES)] = nanos;
+      countOfLatencies++;
+    }
+  }
+
+  /**
+   *
+   * @param sorted latencies
+   * @param percent
+   * @return latency which the given percent of the latencies are not greater than; 0 if there is no latency
+   */
+  private static long percentile(long[] sorted, int percent) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+
+    int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+    return sorted[Math.max(0, rank - 1)];
+  }
+
+  /**
+   * Appends the measures of the given BasicBlock as fields of an object
+   * @param json
+   * @param basicBlock
+   */
+  private static void basicBlock(StringBuilder json, BasicBlock basicBlock) {
+    json.append(",\"count\":").append(basicBlock.getCount());
+    json.append(",\"tfr\":");
+    Json.number(json, basicBlock.getTermFrequencyRatio());
+    json.append(",\"tfd\":");
+    Json.number(json, basicBlock.getDistributionTermFrequency());
+  }
+
+  /**
+   * Sends an error as a JSON object
+   * @param exchange
+   * @param status
+   * @param message
+   * @throws IOException
+   */
+  private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+    StringBuilder json = new StringBuilder("{\"error\":");
+    Json.string(json, message);
+    json.append('}');
+    send(exchange, status, json);
+  }
+
+  /**
+   * Sends the given JSON and closes the exchange
+   * @param exchange
+   * @param status
+   * @param json
+   * @throws IOException
+   */
+  private static void send(HttpExchange exchange, int status, CharSequence json) throws IOException {
+    byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+
+    try (OutputStream output = exchange.getResponseBody()) {
+      output.write(body);
+    }
+  }
+
+  /**
+   * Parses the parameters of the query of the given exchange
+   * @param exchange
+   * @return parameters by name
+   * @throws UnsupportedEncodingException
+   */
+  private static Map<String, String> parameters(HttpExchange exchange) throws UnsupportedEncodingException {
+    Map<String, String> result = new HashMap<>();
+    String query = exchange.getRequestURI().getRawQuery();
+
+    if (query != null) {
+      for (String parameter : query.split("&")) {
+        int equals = parameter.indexOf('=');
+
+        if (equals > 0) {
+          result.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+        } else if (!parameter.isEmpty()) {
+          result.put(URLDecoder.decode(parameter, "UTF-8"), "");
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Handler of an endpoint. It answers the requests which are not admitted, counts the requests, measures their
+   * latencies and turns the failures into errors.
+   */
+  private abstract class Handler implements HttpHandler {
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      if (Boolean.TRUE.equals(rejecting.get())) {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        exchange.getResponseHeaders().set("Connection", "close");
+        sendError(exchange, 503, "The server is busy; please try again.");
+        return;
+      }
+
+      final long startTime = System.nanoTime();
+      try {
+        handle(exchange, parameters(exchange));
+      } catch (Exception ex) {
+        Logger.getLogger(ClassificationServer.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+        sendError(exchange, 500, String.valueOf(ex.getMessage()));
+      } finally {
+        exchange.close();
+        countOfRequests.incrementAndGet();
+        addLatency(System.nanoTime() - startTime);
+      }
+    }
+
+    /**
+     * Handles an admitted request
+     * @param exchange
+     * @param parameters of the query
+     * @throws IOException
+     */
+    abstract void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException;
+  }
+}
@@ -0,0 +1,548 @@
+package vida.phd.tfd.shard;
+
+import vida.phd.tfd.TFD;
+import vida.phd.tfd.entity.BlockKey;
+import vida.phd.tfd.index.BlockDictionary;
+import vida.phd.tfd.index.Shard;
+import vida.phd.tfd.io.BlockReader;
+import vida.phd.tfd.util.Json;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Classifies malware against a model which is split by the hashes of its BasicBlocks over many {@link ShardWorker}
+ * processes, so the model is not limited by the heap of one process.
+ * <br/>The distinct BasicBlocks of a sample are scattered to the shards which own them; every shard votes with its
+ * own BasicBlocks and the votes are summed by family id. A BasicBlock is in exactly one shard with all its families,
+ * so the result is the same as the result of the whole model.
+ * <br/>A coordinator is not thread safe; it keeps one connection to each shard.
+ * @author Vida
+ */
+public class ShardCoordinator implements Closeable {
+
+  /**
+   * Line a worker prints when it is ready, followed by its port
+   */
+  public static final String READY = "Shard listening on port ";
+
+  /**
+   * Handler of a BlockReader which only interns the BasicBlocks into its dictionary
+   */
+  private static final BlockReader.Handler IGNORE = new BlockReader.Handler() {
+    @Override
+    public void block(int blockId) {
+      // the distinct BasicBlocks are read from the dictionary
+    }
+  };
+
+  /**
+   * Connections to the shards by shard index
+   */
+  private final Socket[] sockets;
+
+  /**
+   * Inputs of the connections by shard index
+   */
+  private final DataInputStream[] inputs;
+
+  /**
+   * Outputs of the connections by shard index
+   */
+  private final DataOutputStream[] outputs;
+
+  /**
+   * Names of the families by family id; the same in all shards
+   */
+  private final String[] familyNames;
+
+  /**
+   * Child processes of the shards which were started by this coordinator; empty if it connected to running shards
+   */
+  private final List<Process> processes;
+
+  /**
+   * Constructor which connects to the running shards on the loopback address
+   * @param ports of the shards by shard index
+   * @throws IOException if a shard can not be connected or the shards do not have the same families
+   */
+  public ShardCoordinator(int[] ports) throws IOException {
+    this(ports, new ArrayList<Process>());
+  }
+
+  /**
+   * Constructor which connects to the shards and keeps their processes, which are ended when it is closed
+   * @param ports of the shards by shard index
+   * @param processes
+   * @throws IOException if a shard can not be connected or the shards do not have the same families
+   */
+  private ShardCoordinator(int[] ports, List<Process> processes) throws IOException {
+    this.sockets = new Socket[ports.length];
+    this.inputs = new DataInputStream[ports.length];
+    this.outputs = new DataOutputStream[ports.length];
+    this.processes = processes;
+    String[] names = null;
+
+    try {
+      for (int s = 0; s < ports.length; s++) {
+        sockets[s] = new Socket(InetAddress.getLoopbackAddress(), ports[s]);
+        sockets[s].setTcpNoDelay(true);
+        inputs[s] = new DataInputStream(new BufferedInputStream(sockets[s].getInputStream()));
+        outputs[s] = new DataOutputStream(new BufferedOutputStream(sockets[s].getOutputStream()));
+
+        if (inputs[s].readInt() != ShardWorker.MAGIC) {
+          throw new IOException("Port " + ports[s] + " is not a shard.");
+        }
+
+        int index = inputs[s].readInt();
+        int count = inputs[s].readInt();
+        if (index != s || count != ports.length) {
+          throw new IOException(new Shard(index, count) + " is on port " + ports[s] + "; expected shard " + s + "/" + ports.length + ".");
+        }
+
+        String[] shardNames = new String[inputs[s].readInt()];
+        for (int id = 0; id < shardNames.length; id++) {
+          shardNames[id] = inputs[s].readUTF();
+        }
+
+        if (names == null) {
+          names = shardNames;
+        } else if (!Arrays.equals(names, shardNames)) {
+          throw new IOException("Shard " + s + " does not have the same families as shard 0.");
+        }
+      }
+    } catch (IOException ex) {
+      close();
+      throw ex;
+    }
+
+    this.familyNames = names == null ? new String[0] : names;
+  }
+
+  /**
+   * Starts the given count of shards as child processes of this program on the loopback address, each with its
+   * part of the families of the given directory, and connects to them
+   * @param count of the shards
+   * @param familiesHome directory of the families
+   * @param threads of each shard for loading its families; 0 means one per core
+   * @return coordinator of the shards, which ends them when it is closed
+   * @throws IOException if a shard can not be started
+   */
+  public static ShardCoordinator startLocal(int count, File familiesHome, int threads) throws IOException {
+    List<Process> processes = new ArrayList<>(count);
+    int[] ports = new int[count];
+
+    try {
+      for (int s = 0; s < count; s++) {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("vida.phd.tfd.Main");
+        if (threads > 0) {
+          command.add("--threads");
+          command.add(String.valueOf(threads));
+        }
+        command.add("--load");
+        command.add(familiesHome.getAbsolutePath());
+        command.add("--shard");
+        command.add(new Shard(s, count).toString());
+
+        processes.add(new ProcessBuilder(command).redirectErrorStream(true).start());
+      }
+
+      for (int s = 0; s < count; s++) {
+        ports[s] = awaitReady(processes.get(s), s);
+      }
+
+      return new ShardCoordinator(ports, processes);
+    } catch (IOException ex) {
+      for (Process process : processes) {
+        process.destroy();
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Waits until the given child process prints its port; afterwards its output is drained on a background thread
+   * @param process
+   * @param shard index of the shard
+   * @return port of the shard
+   * @throws IOException if the process ends before it is ready
+   */
+  private static int awaitReady(Process process, int shard) throws IOException {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+    String line;
+
+    while ((line = reader.readLine()) != null) {
+      int ready = line.indexOf(READY);
+
+      if (ready >= 0) {
+        Thread drain = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              while (reader.readLine() != null) {
+                // the output of a ready shard is not needed
+              }
+            } catch (IOException ex) {
+              // the shard is gone
+            }
+          }
+        }, "shard-output");
+        drain.setDaemon(true);
+        drain.start();
+
+        return Integer.parseInt(line.substring(ready + READY.length()).trim());
+      }
+    }
+
+    throw new IOException("Shard " + shard + " ended before it was ready.");
+  }
+
+  /**
+   * Classifies the given malware file
+   * @param file
+   * @param type
+   * @return verdict
+   * @throws IOException if the file can not be read or a shard fails
+   */
+  public Verdict classify(File file, TFD.ScoreType type) throws IOException {
+    return classify(readKeys(file), type);
+  }
+
+  /**
+   * Classifies the malware which is read from the given input, one hash per line
+   * @param input
+   * @param type
+   * @return verdict
+   * @throws IOException if the input can not be read or a shard fails
+   */
+  public Verdict classify(InputStream input, TFD.ScoreType type) throws IOException {
+    BlockDictionary dictionary = new BlockDictionary();
+    new BlockReader(dictionary).read(Channels.newChannel(input), IGNORE);
+    return classify(keysOf(dictionary), type);
+  }
+
+  /**
+   * Reads the distinct BasicBlocks of the given malware file the same way as the shards read the families
+   * @param file
+   * @return keys of the BasicBlocks
+   * @throws IOException if the file can not be read
+   */
+  private static List<BlockKey> readKeys(File file) throws IOException {
+    BlockDictionary dictionary = new BlockDictionary();
+    new BlockReader(dictionary).read(file, IGNORE);
+    return keysOf(dictionary);
+  }
+
+  /**
+   *
+   * @param dictionary
+   * @return keys of all BasicBlocks of the given dictionary
+   */
+  private static List<BlockKey> keysOf(BlockDictionary dictionary) {
+    List<BlockKey> result = new ArrayList<>(dictionary.size());
+
+    for (int id = 0; id < dictionary.size(); id++) {
+      result.add(dictionary.getKey(id));
+    }
+
+    return result;
+  }
+
+  /**
+   * Scatters the given distinct BasicBlocks to their shards and sums the votes of the shards
+   * @param keys distinct keys of the BasicBlocks
+   * @param type
+   * @return verdict
+   * @throws IOException if a shard fails
+   */
+  public Verdict classify(Collection<BlockKey> keys, TFD.ScoreType type) throws IOException {
+    int count = sockets.length;
+    ByteBuffer[] requests = new ByteBuffer[count];
+    int[] countOfKeys = new int[count];
+
+    for (BlockKey key : keys) {
+      int s = Shard.indexOf(key, count);
+
+      if (requests[s] == null) {
+        requests[s] = ByteBuffer.allocate(1024);
+      } else if (requests[s].remaining() < key.serializedSize()) {
+        ByteBuffer bigger = ByteBuffer.allocate(requests[s].capacity() * 2 + key.serializedSize());
+        requests[s].flip();
+        bigger.put(requests[s]);
+        requests[s] = bigger;
+      }
+
+      key.write(requests[s]);
+      countOfKeys[s]++;
+    }
+
+    int requestType = type == TFD.ScoreType.FAM_CLASSIFIER ? ShardWorker.FC_TYPE : ShardWorker.TFD_TYPE;
+    for (int s = 0; s < count; s++) {
+      int length = requests[s] == null ? 0 : requests[s].position();
+
+      outputs[s].writeInt(requestType);
+      outputs[s].writeInt(countOfKeys[s]);
+      outputs[s].writeInt(length);
+      if (length > 0) {
+        outputs[s].write(requests[s].array(), 0, length);
+      }
+      outputs[s].flush();
+    }
+
+    int[] scores = new int[familyNames.length];
+    int countOfKnownBlocks = 0;
+    for (int s = 0; s < count; s++) {
+      countOfKnownBlocks += inputs[s].readInt();
+
+      int countOfFamilies = inputs[s].readInt();
+      if (countOfFamilies != familyNames.length) {
+        throw new IOException("Shard " + s + " has " + countOfFamilies + " families; expected " + familyNames.length + ".");
+      }
+
+      for (int id = 0; id < countOfFamilies; id++) {
+        scores[id] += inputs[s].readInt();
+      }
+    }
+
+    return new Verdict(familyNames, scores, countOfKnownBlocks);
+  }
+
+  /**
+   * Classifies the malware files whose paths are read from the given input, one per line, and writes one JSON line
+   * with the verdict of each file to the given output, in the order of the input. A file which can not be read gets
+   * an error verdict, while a failing shard ends the whole pipe.
+   * @param input
+   * @param output
+   * @param type
+   * @return count of the files
+   * @throws IOException if the input can not be read or a shard fails
+   */
+  public int pipe(InputStream input, OutputStream output, TFD.ScoreType type) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+    Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    int result = 0;
+    String line;
+
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+
+      StringBuilder json = new StringBuilder("{\"sample\":");
+      Json.string(json, line);
+
+      List<BlockKey> keys = null;
+      try {
+        keys = readKeys(new File(line));
+      } catch (IOException ex) {
+        json.append(",\"error\":");
+        Json.string(json, ex.toString());
+      }
+
+      if (keys != null) {
+        Verdict verdict = classify(keys, type);
+        json.append(",\"shards\":").append(countOfShards());
+        json.append(",\"family\":");
+        Json.string(json, verdict.getFamily());
+        json.append(",\"basicBlocks\":").append(verdict.getCountOfBasicBlocks());
+        json.append(",\"scores\":{");
+        for (int id = 0; id < familyNames.length; id++) {
+          if (id > 0) {
+            json.append(',');
+          }
+          Json.string(json, familyNames[id]);
+          json.append(':').append(verdict.getScores()[id]);
+        }
+        json.append('}');
+      }
+
+      json.append("}\n");
+      writer.write(json.toString());
+      writer.flush();
+      result++;
+    }
+
+    return result;
+  }
+
+  /**
+   *
+   * @return count of the shards
+   */
+  public int countOfShards() {
+    return sockets.length;
+  }
+
+  /**
+   *
+   * @return names of the families by family id
+   */
+  public String[] getFamilyNames() {
+    return familyNames;
+  }
+
+  /**
+   * Closes the connections and ends the child processes of the shards
+   */
+  @Override
+  public final void close() {
+    for (int s = 0; s < sockets.length; s++) {
+      try {
+        if (outputs[s] != null) {
+          outputs[s].writeInt(ShardWorker.CLOSE);
+          outputs[s].flush();
+        }
+        if (sockets[s] != null) {
+          sockets[s].close();
+        }
+      } catch (IOException ex) {
+        Logger.getLogger(ShardCoordinator.class.getName()).log(Level.WARNING, ex.getMessage());
+      }
+    }
+
+    for (Process process : processes) {
+      try {
+        process.getOutputStream().close();
+      } catch (IOException ex) {
+        Logger.getLogger(ShardCoordinator.class.getName()).log(Level.WARNING, ex.getMessage());
+      }
+    }
+
+    for (Process process : processes) {
+      if (!waitFor(process, 5000)) {
+        process.destroy();
+      }
+    }
+  }
+
+  /**
+   * Waits for the given process to end
+   * @param process
+   * @param millis
+   * @return true if it ended in time
+   */
+  private static boolean waitFor(Process process, long millis) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+
+    while (System.nanoTime() < deadline) {
+      try {
+        process.exitValue();
+        return true;
+      } catch (IllegalThreadStateException ex) {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Result of the classification of one malware by all shards
+   */
+  public static class Verdict {
+
+    /**
+     * Names of the families by family id
+     */
+    private final String[] familyNames;
+
+    /**
+     * Summed scores by family id
+     */
+    private final int[] scores;
+
+    /**
+     * Count of the distinct BasicBlocks of the malware which the model has
+     */
+    private final int countOfBasicBlocks;
+
+    /**
+     * Constructor which takes all fields
+     * @param familyNames
+     * @param scores
+     * @param countOfBasicBlocks
+     */
+    public Verdict(String[] familyNames, int[] scores, int countOfBasicBlocks) {
+      this.familyNames = familyNames;
+      this.scores = scores;
+      this.countOfBasicBlocks = countOfBasicBlocks;
+    }
+
+    /**
+     * Finds the best matching family, the same as {@link vida.phd.tfd.ModelVersion#findResultFamily(int[])}:
+     * among equal scores the family with the smallest id wins
+     * @return name of the family or null if no family has any score
+     */
+    public String getFamily() {
+      int max = 0;
+      int best = -1;
+
+      for (int id = 0; id < scores.length; id++) {
+        if (scores[id] > max) {
+          max = scores[id];
+          best = id;
+        }
+      }
+
+      return best < 0 ? null : familyNames[best];
+    }
+
+    /**
+     *
+     * @return names of the families by family id
+     */
+    public String[] getFamilyNames() {
+      return familyNames;
+    }
+
+    /**
+     *
+     * @return scores by family id
+     */
+    public int[] getScores() {
+      return scores;
+    }
+
+    /**
+     *
+     * @return count of the distinct BasicBlocks of the malware which the model has
+     */
+    public int getCountOfBasicBlocks() {
+      return countOfBasicBlocks;
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package vida.phd.tfd.shard;
+
+import vida.phd.tfd.ModelVersion;
+import vida.phd.tfd.TFD;
+import vida.phd.tfd.entity.BlockKey;
+import vida.phd.tfd.index.BlockDictionary;
+import vida.phd.tfd.index.BlockIndex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves one shard of the model to the {@link ShardCoordinator} over a loopback socket.
+ * <br/>The shard has the BasicBlocks of its part of the hash space in all families, and the totals of all families,
+ * so the measures of its BasicBlocks are the same as in the whole model. For each sample the coordinator sends the
+ * distinct BasicBlocks of the shard; the worker answers with the votes of its BasicBlocks by family id.
+ * <br/>TFD and FC of the shard are calculated before the worker accepts connections, so a request only reads them. Each
+ * connection is served by its own thread against the version of the model which is current for each request.
+ * @author Vida
+ */
+public class ShardWorker {
+
+  /**
+   * First int the worker sends on every connection; "TFDS"
+   */
+  static final int MAGIC = 0x54464453;
+
+  /**
+   * Request type which closes the connection
+   */
+  static final int CLOSE = -1;
+
+  /**
+   * Request type of the TFD ScoreType
+   */
+  static final int TFD_TYPE = 0;
+
+  /**
+   * Request type of the FamilyClassifier ScoreType
+   */
+  static final int FC_TYPE = 1;
+
+  /**
+   * Model of the shard; its shard must be set and its families loaded
+   */
+  private final TFD tfd;
+
+  /**
+   * Server socket on the loopback address
+   */
+  private final ServerSocket serverSocket;
+
+  /**
+   * Threads which serve the connections
+   */
+  private final ExecutorService connections;
+
+  /**
+   * Constructor which takes the model of the shard and the port; 0 picks a free port
+   * @param tfd
+   * @param port
+   * @throws IOException if the port can not be bound
+   */
+  public ShardWorker(TFD tfd, int port) throws IOException {
+    this.tfd = tfd;
+    this.serverSocket = new ServerSocket();
+    this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    this.connections = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "shard-connection");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Calculates TFD and FC of the shard and accepts the connections on a background thread
+   */
+  public void start() {
+    tfd.calculateModel(TFD.ScoreType.FAM_CLASSIFIER);
+
+    Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        accept();
+      }
+    }, "shard-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Stops accepting connections and closes the served ones
+   */
+  public void stop() {
+    try {
+      serverSocket.close();
+    } catch (IOException ex) {
+      Logger.getLogger(ShardWorker.class.getName()).log(Level.SEVERE, null, ex);
+    }
+    connections.shutdownNow();
+  }
+
+  /**
+   *
+   * @return port the worker listens on
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Accepts the connections until the server socket is closed
+   */
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        final Socket socket = serverSocket.accept();
+        connections.execute(new Runnable() {
+          @Override
+          public void run() {
+            serve(socket);
+          }
+        });
+      } catch (IOException ex) {
+        if (!serverSocket.isClosed()) {
+          Logger.getLogger(ShardWorker.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Serves the requests of one connection until the coordinator closes it
+   * @param socket
+   */
+  private void serve(Socket socket) {
+    try (Socket connection = socket) {
+      connection.setTcpNoDelay(true);
+      DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+      BlockIndex index = tfd.getModel().getIndex();
+
+      output.writeInt(MAGIC);
+      output.writeInt(tfd.getShard().getIndex());
+      output.writeInt(tfd.getShard().getCount());
+      output.writeInt(index.countOfFamilies());
+      for (int id = 0; id < index.countOfFamilies(); id++) {
+        output.writeUTF(index.getFamily(id).getName());
+      }
+      output.flush();
+
+      byte[] bytes = new byte[0];
+      int[] votes = new int[0];
+
+      while (true) {
+        int type = input.readInt();
+        if (type == CLOSE) {
+          break;
+        }
+
+        int countOfKeys = input.readInt();
+        int length = input.readInt();
+        if (bytes.length < length) {
+          bytes = new byte[length];
+        }
+        input.readFully(bytes, 0, length);
+
+        TFD.ScoreType scoreType = type == FC_TYPE ? TFD.ScoreType.FAM_CLASSIFIER : TFD.ScoreType.TFD;
+        ModelVersion model = tfd.getModel();
+        BlockDictionary dictionary = model.getDictionary();
+        int countOfFamilies = model.getIndex().countOfFamilies();
+
+        if (votes.length < countOfFamilies) {
+          votes = new int[countOfFamilies];
+        }
+        Arrays.fill(votes, 0);
+
+        ByteBuffer keys = ByteBuffer.wrap(bytes, 0, length);
+        int countOfKnownBlocks = 0;
+        for (int i = 0; i < countOfKeys; i++) {
+          int blockId = dictionary.find(BlockKey.read(keys));
+
+          if (blockId >= 0) {
+            countOfKnownBlocks++;
+            int best = model.bestFamilyId(blockId, scoreType);
+
+            if (best >= 0) {
+              votes[best]++;
+            }
+          }
+        }
+
+        output.writeInt(countOfKnownBlocks);
+        output.writeInt(countOfFamilies);
+        for (int id = 0; id < countOfFamilies; id++) {
+          output.writeInt(votes[id]);
+        }
+        output.flush();
+      }
+    } catch (EOFException ex) {
+      // the coordinator is gone
+    } catch (IOException ex) {
+      Logger.getLogger(ShardWorker.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+    }
+  }
+}
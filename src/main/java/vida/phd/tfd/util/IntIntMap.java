@@ -0,0 +1,190 @@
+package vida.phd.tfd.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from non-negative int keys to int values, without boxing.
+ * @author Vida
+ */
+public class IntIntMap {
+
+  /**
+   * Marker of the free slots
+   */
+  private static final int FREE = -1;
+
+  /**
+   * Keys of the slots
+   */
+  private int[] keys;
+
+  /**
+   * Values of the slots
+   */
+  private int[] values;
+
+  /**
+   * Count of the keys
+   */
+  private int size;
+
+  /**
+   * Capacity minus one; capacity is always a power of two
+   */
+  private int mask;
+
+  /**
+   * Default constructor
+   */
+  public IntIntMap() {
+    this(16);
+  }
+
+  /**
+   * Constructor which takes the expected count of keys
+   * @param expectedSize 
+   */
+  public IntIntMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+    allocate(capacity);
+  }
+
+  /**
+   * 
+   * @param key
+   * @param defaultValue
+   * @return value of the key or the default value if the key is not in the map
+   */
+  public int get(int key, int defaultValue) {
+    int slot = slot(key);
+    return keys[slot] == key ? values[slot] : defaultValue;
+  }
+
+  /**
+   * 
+   * @param key
+   * @return true if the key is in the map
+   */
+  public boolean containsKey(int key) {
+    return keys[slot(key)] == key;
+  }
+
+  /**
+   * Puts the value of the key
+   * @param key non-negative key
+   * @param value 
+   */
+  public void put(int key, int value) {
+    int slot = slot(key);
+
+    if (keys[slot] == FREE) {
+      keys[slot] = key;
+      values[slot] = value;
+
+      if (++size * 2 > keys.length) {
+        rehash();
+      }
+    } else {
+      values[slot] = value;
+    }
+  }
+
+  /**
+   * Adds the delta to the value of the key; a missing key is added with the delta as its value
+   * @param key non-negative key
+   * @param delta
+   * @return the new value
+   */
+  public int addTo(int key, int delta) {
+    int slot = slot(key);
+
+    if (keys[slot] == FREE) {
+      keys[slot] = key;
+      values[slot] = delta;
+
+      if (++size * 2 > keys.length) {
+        rehash();
+      }
+
+      return delta;
+    }
+
+    return values[slot] += delta;
+  }
+
+  /**
+   * 
+   * @return count of the keys
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Removes all keys and keeps the capacity
+   */
+  public void clear() {
+    Arrays.fill(keys, FREE);
+    size = 0;
+  }
+
+  /**
+   * 
+   * @return keys of the map in the order of the slots
+   */
+  public int[] keys() {
+    int[] result = new int[size];
+    int i = 0;
+
+    for (int key : keys) {
+      if (key != FREE) {
+        result[i++] = key;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Finds the slot of the key, or the free slot it should be put in
+   * @param key
+   * @return 
+   */
+  private int slot(int key) {
+    int slot = (key * 0x9E3779B9) & mask;
+
+    while (keys[slot] != FREE && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  /**
+   * Allocates the slots
+   * @param capacity 
+   */
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    values = new int[capacity];
+    mask = capacity - 1;
+    Arrays.fill(keys, FREE);
+  }
+
+  /**
+   * Doubles the capacity
+   */
+  private void rehash() {
+    int[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(oldKeys.length * 2);
+
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != FREE) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package vida.phd.tfd.util;
+
+/**
+ * Appends JSON values to a StringBuilder, for the few flat objects the program writes; there is no JSON library.
+ * @author Vida
+ */
+public final class Json {
+
+  /**
+   * Only static methods
+   */
+  private Json() {
+  }
+
+  /**
+   * Appends the given number; NaN and infinities are not valid JSON, so they are appended as null
+   * @param json
+   * @param value
+   */
+  public static void number(StringBuilder json, double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      json.append("null");
+    } else {
+      json.append(value);
+    }
+  }
+
+  /**
+   * Appends the given String as a quoted JSON string
+   * @param json
+   * @param value or null
+   */
+  public static void string(StringBuilder json, String value) {
+    if (value == null) {
+      json.append("null");
+      return;
+    }
+
+    json.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    json.append('"');
+  }
+}
@@ -0,0 +1,314 @@
+package vida.phd.tfd.server;
+
+import vida.phd.tfd.TFD;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator of the {@link ClassificationServer}. It writes a synthetic corpus of families to a temporary directory,
+ * serves it on a free port of the loopback address and posts malware to /classify from many clients at once. Then it
+ * prints the p50 and p99 latency seen by the clients, the throughput and how many requests were not admitted.
+ * <br/>Usage: ClassificationServerLoad [clients] [requests per client] [server threads]
+ * <br/>It exits with 1 if any request failed with another status than 503.
+ * @author Vida
+ */
+public class ClassificationServerLoad {
+
+  /**
+   * Count of the families of the corpus
+   */
+  private static final int FAMILIES = 8;
+
+  /**
+   * Count of the malware of each family
+   */
+  private static final int MALWARES = 20;
+
+  /**
+   * Count of the BasicBlocks which only a family has
+   */
+  private static final int OWN_BLOCKS = 2000;
+
+  /**
+   * Count of the BasicBlocks which all families share
+   */
+  private static final int COMMON_BLOCKS = 1000;
+
+  /**
+   * Count of the BasicBlocks of each malware and each sample
+   */
+  private static final int BLOCKS_PER_MALWARE = 600;
+
+  /**
+   * Count of the samples the clients post
+   */
+  private static final int SAMPLES = 64;
+
+  /**
+   * Runs the load
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+    int requests = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+    Random random = new Random(1);
+    File home = Files.createTempDirectory("tfd-load").toFile();
+    writeCorpus(home, random);
+    final List<byte[]> samples = samples(random);
+
+    TFD tfd = new TFD(home);
+    tfd.setParallelism(threads);
+    tfd.loadFamilies();
+
+    ClassificationServer server = new ClassificationServer(tfd, 0, threads, threads * 16);
+    server.start();
+    final String base = "http://127.0.0.1:" + server.getPort();
+
+    final long[] latencies = new long[clients * requests];
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger rejected = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(clients);
+    List<Future<Void>> results = new ArrayList<>();
+
+    final long startTime = System.nanoTime();
+    for (int c = 0; c < clients; c++) {
+      final int client = c;
+      final int count = requests;
+
+      results.add(pool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          for (int r = 0; r < count; r++) {
+            String type = (client + r) % 2 == 0 ? "tfd" : "fc";
+            byte[] sample = samples.get((client * count + r) % samples.size());
+
+            long requestTime = System.nanoTime();
+            int status = post(base + "/classify?type=" + type, sample);
+            latencies[next.getAndIncrement()] = System.nanoTime() - requestTime;
+
+            if (status == 503) {
+              rejected.incrementAndGet();
+            } else if (status != 200) {
+              failed.incrementAndGet();
+            }
+          }
+          return null;
+        }
+      }));
+    }
+
+    try {
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } catch (ExecutionException ex) {
+      System.out.println("Client failed: " + ex.getCause());
+      failed.incrementAndGet();
+    }
+
+    long duration = System.nanoTime() - startTime;
+    pool.shutdown();
+
+    long[] sorted = Arrays.copyOf(latencies, next.get());
+    Arrays.sort(sorted);
+    System.out.println(MessageFormat.format("{0} requests of {1} clients in {2} ms; {3} requests per second.", sorted.length, clients,
+            duration / 1000000, String.valueOf(sorted.length * 1000000000L / Math.max(1, duration))));
+    System.out.println(MessageFormat.format("Client latency p50: {0} ms, p99: {1} ms, max: {2} ms. Not admitted: {3}, failed: {4}.",
+            percentile(sorted, 50) / 1000000.0, percentile(sorted, 99) / 1000000.0, percentile(sorted, 100) / 1000000.0,
+            rejected.get(), failed.get()));
+    System.out.println("Server stats: " + get(base + "/stats"));
+
+    server.stop();
+    tfd.close();
+    delete(home);
+    System.exit(failed.get() == 0 ? 0 : 1);
+  }
+
+  /**
+   * Writes the families of the corpus, one directory for each family and one file for each malware
+   * @param home
+   * @param random
+   * @throws IOException
+   * @throws NoSuchAlgorithmException
+   */
+  private static void writeCorpus(File home, Random random) throws IOException, NoSuchAlgorithmException {
+    for (int f = 0; f < FAMILIES; f++) {
+      File directory = new File(home, "Family" + f);
+      directory.mkdirs();
+
+      for (int m = 0; m < MALWARES; m++) {
+        try (PrintWriter writer = new PrintWriter(new File(directory, "Family" + f + "_" + m + ".txt"), "UTF-8")) {
+          for (int b = 0; b < BLOCKS_PER_MALWARE; b++) {
+            writer.println(block(f, random));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   *
+   * @param random
+   * @return bodies of the samples; each one has the BasicBlocks of a family and some unknown BasicBlocks
+   * @throws NoSuchAlgorithmException
+   */
+  private static List<byte[]> samples(Random random) throws NoSuchAlgorithmException {
+    List<byte[]> result = new ArrayList<>();
+
+    for (int s = 0; s < SAMPLES; s++) {
+      StringBuilder body = new StringBuilder();
+
+      for (int b = 0; b < BLOCKS_PER_MALWARE; b++) {
+        body.append(b % 10 == 0 ? hash("unknown" + s + "_" + b) : block(s % FAMILIES, random)).append('\n');
+      }
+      result.add(body.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    return result;
+  }
+
+  /**
+   *
+   * @param family
+   * @param random
+   * @return hash of a BasicBlock of the given family; one of three is shared by all families
+   * @throws NoSuchAlgorithmException
+   */
+  private static String block(int family, Random random) throws NoSuchAlgorithmException {
+    if (random.nextInt(3) == 0) {
+      return hash("common" + random.nextInt(COMMON_BLOCKS));
+    }
+
+    return hash("family" + family + "_" + random.nextInt(OWN_BLOCKS));
+  }
+
+  /**
+   *
+   * @param text
+   * @return SHA-1 of the given text in hex
+   * @throws NoSuchAlgorithmException
+   */
+  private static String hash(String text) throws NoSuchAlgorithmException {
+    StringBuilder result = new StringBuilder();
+
+    for (byte b : MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8))) {
+      result.append(String.format("%02x", b & 0xff));
+    }
+
+    return result.toString();
+  }
+
+  /**
+   * Posts the given body and reads the whole response
+   * @param url
+   * @param body
+   * @return status of the response
+   * @throws IOException
+   */
+  private static int post(String url, byte[] body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(body.length);
+
+    try (OutputStream output = connection.getOutputStream()) {
+      output.write(body);
+    }
+
+    int status = connection.getResponseCode();
+    read(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+    return status;
+  }
+
+  /**
+   *
+   * @param url
+   * @return body of the response of a GET
+   * @throws IOException
+   */
+  private static String get(String url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    return read(connection.getInputStream());
+  }
+
+  /**
+   * Reads and closes the given stream
+   * @param input or null
+   * @return content
+   * @throws IOException
+   */
+  private static String read(InputStream input) throws IOException {
+    if (input == null) {
+      return "";
+    }
+
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (InputStream stream = input) {
+      byte[] buffer = new byte[8192];
+      int length;
+
+      while ((length = stream.read(buffer)) >= 0) {
+        result.write(buffer, 0, length);
+      }
+    }
+
+    return new String(result.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   *
+   * @param sorted latencies
+   * @param percent
+   * @return latency which the given percent of the latencies are not greater than; 0 if there is no latency
+   */
+  private static long percentile(long[] sorted, int percent) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+
+    int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+    return sorted[Math.max(0, rank - 1)];
+  }
+
+  /**
+   * Deletes the given file or directory with its content
+   * @param file
+   */
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+
+    file.delete();
+  }
+}
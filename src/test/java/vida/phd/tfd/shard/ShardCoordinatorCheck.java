@@ -0,0 +1,330 @@
+package vida.phd.tfd.shard;
+
+import vida.phd.tfd.ModelVersion;
+import vida.phd.tfd.TFD;
+import vida.phd.tfd.entity.Family;
+import vida.phd.tfd.index.BlockIndex;
+import vida.phd.tfd.io.DistinctBlockReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the shards classify like the whole model. It writes a synthetic corpus of families to a temporary
+ * directory, starts the shards as local child processes by {@link ShardCoordinator#startLocal(int, File, int)} and
+ * compares the verdict of each sample with the scores and the family of the same sample in one process.
+ * <br/>Besides samples of each family, the corpus has samples whose best families have equal scores, so both must
+ * pick the family with the smallest id.
+ * <br/>Usage: ShardCoordinatorCheck [shards]
+ * <br/>It exits with 1 if any verdict differs.
+ * @author Vida
+ */
+public class ShardCoordinatorCheck {
+
+  /**
+   * Count of the families of the corpus
+   */
+  private static final int FAMILIES = 5;
+
+  /**
+   * Count of the malware of each family
+   */
+  private static final int MALWARES = 8;
+
+  /**
+   * Count of the BasicBlocks which every malware of a family has and no other family has
+   */
+  private static final int CORE_BLOCKS = 12;
+
+  /**
+   * Count of the other BasicBlocks which only a family has
+   */
+  private static final int OWN_BLOCKS = 400;
+
+  /**
+   * Count of the BasicBlocks which all families share
+   */
+  private static final int COMMON_BLOCKS = 200;
+
+  /**
+   * Count of the random BasicBlocks of each malware and each sample
+   */
+  private static final int BLOCKS_PER_MALWARE = 150;
+
+  /**
+   * Runs the check
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    int shards = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+
+    Random random = new Random(1);
+    File home = Files.createTempDirectory("tfd-shards").toFile();
+    File families = new File(home, "families");
+    File samples = new File(home, "samples");
+    writeCorpus(families, random);
+    List<File> files = writeSamples(samples, random);
+
+    TFD tfd = new TFD(families);
+    tfd.loadFamilies();
+    int mismatches = 0;
+
+    try (ShardCoordinator coordinator = ShardCoordinator.startLocal(shards, families, 0)) {
+      for (TFD.ScoreType type : new TFD.ScoreType[]{TFD.ScoreType.TFD, TFD.ScoreType.FAM_CLASSIFIER}) {
+        tfd.calculateModel(type);
+        ModelVersion model = tfd.getModel();
+        BlockIndex index = model.getIndex();
+        DistinctBlockReader reader = new DistinctBlockReader(model.getDictionary());
+
+        String[] names = new String[index.countOfFamilies()];
+        for (int id = 0; id < names.length; id++) {
+          names[id] = index.getFamily(id).getName();
+        }
+        if (!Arrays.equals(names, coordinator.getFamilyNames())) {
+          System.out.println("The shards have the families " + Arrays.toString(coordinator.getFamilyNames()) + "; expected " + Arrays.toString(names));
+          mismatches++;
+          continue;
+        }
+
+        int ties = 0;
+        for (File file : files) {
+          int[] scores = new int[names.length];
+          int size = reader.read(file);
+          ModelVersion.score(model.getWinners(type), reader.getIds(), size, scores, null);
+          Family family = model.findResultFamily(scores);
+          String expected = family == null ? null : family.getName();
+
+          ShardCoordinator.Verdict verdict = coordinator.classify(file, type);
+          if (!Arrays.equals(scores, verdict.getScores()) || size != verdict.getCountOfBasicBlocks() || !equal(expected, verdict.getFamily())) {
+            System.out.println(MessageFormat.format("{0} {1}: shards {2} {3} of {4}; whole model {5} {6} of {7}", type, file.getName(),
+                    verdict.getFamily(), Arrays.toString(verdict.getScores()), verdict.getCountOfBasicBlocks(), expected, Arrays.toString(scores), size));
+            mismatches++;
+          }
+
+          if (isTie(scores)) {
+            ties++;
+            if (!equal(expected, names[firstBest(scores)])) {
+              System.out.println(type + " " + file.getName() + ": " + expected + " is not the family with the smallest id among the best.");
+              mismatches++;
+            }
+          }
+        }
+
+        System.out.println(MessageFormat.format("{0}: {1} samples of which {2} are ties checked on {3} shards.", type, files.size(), ties, shards));
+      }
+    } finally {
+      tfd.close();
+      delete(home);
+    }
+
+    System.out.println(mismatches == 0 ? "The shards classify like the whole model." : mismatches + " verdicts differ.");
+    System.exit(mismatches == 0 ? 0 : 1);
+  }
+
+  /**
+   * Writes the families of the corpus, one directory for each family and one file for each malware
+   * @param home
+   * @param random
+   * @throws IOException
+   * @throws NoSuchAlgorithmException
+   */
+  private static void writeCorpus(File home, Random random) throws IOException, NoSuchAlgorithmException {
+    for (int f = 0; f < FAMILIES; f++) {
+      File directory = new File(home, "Family" + f);
+      directory.mkdirs();
+
+      for (int m = 0; m < MALWARES; m++) {
+        List<String> blocks = new ArrayList<>();
+        for (int b = 0; b < CORE_BLOCKS; b++) {
+          blocks.add(core(f, b));
+        }
+        for (int b = 0; b < BLOCKS_PER_MALWARE; b++) {
+          blocks.add(block(f, random));
+        }
+        write(new File(directory, "Family" + f + "_" + m + ".txt"), blocks);
+      }
+    }
+  }
+
+  /**
+   * Writes the samples: some of each family, some of unknown BasicBlocks only and some whose best families tie
+   * @param directory
+   * @param random
+   * @return files of the samples
+   * @throws IOException
+   * @throws NoSuchAlgorithmException
+   */
+  private static List<File> writeSamples(File directory, Random random) throws IOException, NoSuchAlgorithmException {
+    directory.mkdirs();
+    List<File> result = new ArrayList<>();
+
+    for (int s = 0; s < FAMILIES * 4; s++) {
+      List<String> blocks = new ArrayList<>();
+      for (int b = 0; b < BLOCKS_PER_MALWARE; b++) {
+        blocks.add(b % 10 == 0 ? hash("unknown" + s + "_" + b) : block(s % FAMILIES, random));
+      }
+      result.add(write(new File(directory, "sample" + s + ".txt"), blocks));
+    }
+
+    List<String> unknown = new ArrayList<>();
+    for (int b = 0; b < 20; b++) {
+      unknown.add(hash("unknown_" + b));
+    }
+    result.add(write(new File(directory, "unknown.txt"), unknown));
+
+    // the core BasicBlocks vote for their family only; the family with the greater id comes first in the file
+    for (int f = 0; f + 1 < FAMILIES; f++) {
+      List<String> blocks = new ArrayList<>();
+      for (int b = 0; b < CORE_BLOCKS; b++) {
+        blocks.add(core(f + 1, b));
+      }
+      for (int b = 0; b < CORE_BLOCKS; b++) {
+        blocks.add(core(f, b));
+      }
+      result.add(write(new File(directory, "tie" + f + ".txt"), blocks));
+    }
+
+    List<String> blocks = new ArrayList<>();
+    for (int f = FAMILIES - 1; f >= 0; f--) {
+      for (int b = 0; b < CORE_BLOCKS / 2; b++) {
+        blocks.add(core(f, b));
+      }
+    }
+    result.add(write(new File(directory, "tieAll.txt"), blocks));
+
+    return result;
+  }
+
+  /**
+   * Writes the given hashes, one per line
+   * @param file
+   * @param blocks
+   * @return file
+   * @throws IOException
+   */
+  private static File write(File file, List<String> blocks) throws IOException {
+    try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+      for (String block : blocks) {
+        writer.println(block);
+      }
+    }
+
+    return file;
+  }
+
+  /**
+   *
+   * @param family
+   * @param index
+   * @return hash of a core BasicBlock of the given family
+   * @throws NoSuchAlgorithmException
+   */
+  private static String core(int family, int index) throws NoSuchAlgorithmException {
+    return hash("core" + family + "_" + index);
+  }
+
+  /**
+   *
+   * @param family
+   * @param random
+   * @return hash of a BasicBlock of the given family; one of three is shared by all families
+   * @throws NoSuchAlgorithmException
+   */
+  private static String block(int family, Random random) throws NoSuchAlgorithmException {
+    if (random.nextInt(3) == 0) {
+      return hash("common" + random.nextInt(COMMON_BLOCKS));
+    }
+
+    return hash("family" + family + "_" + random.nextInt(OWN_BLOCKS));
+  }
+
+  /**
+   *
+   * @param text
+   * @return SHA-1 of the given text in hex
+   * @throws NoSuchAlgorithmException
+   */
+  private static String hash(String text) throws NoSuchAlgorithmException {
+    StringBuilder result = new StringBuilder();
+
+    for (byte b : MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8))) {
+      result.append(String.format("%02x", b & 0xff));
+    }
+
+    return result.toString();
+  }
+
+  /**
+   *
+   * @param scores
+   * @return true if more than one family has the best score and it is not 0
+   */
+  private static boolean isTie(int[] scores) {
+    int best = firstBest(scores);
+    if (best < 0) {
+      return false;
+    }
+
+    for (int id = best + 1; id < scores.length; id++) {
+      if (scores[id] == scores[best]) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   *
+   * @param scores
+   * @return smallest id of the families with the best score or -1 if no family has any score
+   */
+  private static int firstBest(int[] scores) {
+    int result = -1;
+
+    for (int id = 0; id < scores.length; id++) {
+      if (scores[id] > 0 && (result < 0 || scores[id] > scores[result])) {
+        result = id;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *
+   * @param a or null
+   * @param b or null
+   * @return true if both are null or equal
+   */
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /**
+   * Deletes the given file or directory with its content
+   * @param file
+   */
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+
+    file.delete();
+  }
+}